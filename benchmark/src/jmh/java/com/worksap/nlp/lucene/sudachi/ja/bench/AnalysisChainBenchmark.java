@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.lucene.sudachi.ja.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+import com.worksap.nlp.elasticsearch.sudachi.plugin.AnalysisCache;
+import com.worksap.nlp.elasticsearch.sudachi.plugin.AnalysisCacheImpl;
+import com.worksap.nlp.elasticsearch.sudachi.plugin.ReloadableDictionary;
+import com.worksap.nlp.lucene.sudachi.ja.CachingTokenizer;
+import com.worksap.nlp.lucene.sudachi.ja.SudachiAnalyzer;
+import com.worksap.nlp.lucene.sudachi.ja.SudachiBaseFormFilter;
+import com.worksap.nlp.lucene.sudachi.ja.SudachiNormalizedFormFilter;
+import com.worksap.nlp.lucene.sudachi.ja.SudachiReadingFormFilter;
+import com.worksap.nlp.lucene.sudachi.ja.SudachiSplitFilter;
+import com.worksap.nlp.lucene.sudachi.ja.SudachiTokenizer;
+import com.worksap.nlp.lucene.sudachi.ja.input.ChainedExtractor;
+import com.worksap.nlp.lucene.sudachi.ja.input.CopyingInputExtractor;
+import com.worksap.nlp.lucene.sudachi.ja.input.InputExtractor;
+import com.worksap.nlp.lucene.sudachi.ja.input.InputExtractorBootstrap;
+import com.worksap.nlp.sudachi.Tokenizer.SplitMode;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.AttributeFactory;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Throughput of the Sudachi analysis chain over the whole corpus.
+ * <p>
+ * A single operation analyzes every document of the corpus once. In addition to
+ * the operation rate, {@link Counters} reports tokens/s and (UTF-8) bytes/s.
+ * Allocation rate is reported by the gc profiler, which is enabled by the build.
+ * <p>
+ * Tokenizer-only benchmarks use the benchmark split mode for analysis, split
+ * filter benchmarks analyze in C mode and split into the benchmark split mode,
+ * like it is done in index settings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AnalysisChainBenchmark {
+    @Param({ "A", "B", "C" })
+    public SplitMode splitMode;
+
+    @Param({ "engine", "tinylfu", "off" })
+    public String cache;
+
+    /**
+     * Size of the analysis cache in bytes, the default value of {@code cache-size}
+     * setting by default. Larger values keep the whole corpus cached.
+     */
+    @Param({ "2097152" })
+    public long cacheSize;
+
+    private ReloadableDictionary dictionary;
+    private AnalysisCache analysisCache;
+
+    private Analyzer tokenizer;
+    private Analyzer splitSearch;
+    private Analyzer splitExtended;
+    private Analyzer baseForm;
+    private Analyzer normalizedForm;
+    private Analyzer readingForm;
+    private Analyzer analyzer;
+
+    @Setup(Level.Trial)
+    public void setup(BenchmarkEnvironment env) {
+        dictionary = env.dictionary;
+        analysisCache = makeCache();
+        tokenizer = chain(splitMode, UnaryOperator.identity());
+        splitSearch = chain(SplitMode.C, s -> new SudachiSplitFilter(s, SudachiSplitFilter.Mode.SEARCH, splitMode));
+        splitExtended = chain(SplitMode.C,
+                s -> new SudachiSplitFilter(s, SudachiSplitFilter.Mode.EXTENDED, splitMode));
+        baseForm = chain(splitMode, SudachiBaseFormFilter::new);
+        normalizedForm = chain(splitMode, SudachiNormalizedFormFilter::new);
+        readingForm = chain(splitMode, SudachiReadingFormFilter::new);
+        analyzer = new SudachiAnalyzer(dictionary, analysisCache, true, splitMode,
+                SudachiAnalyzer.getDefaultStopSet(), SudachiAnalyzer.getDefaultStopTags());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tokenizer.close();
+        splitSearch.close();
+        splitExtended.close();
+        baseForm.close();
+        normalizedForm.close();
+        readingForm.close();
+        analyzer.close();
+    }
+
+    private AnalysisCache makeCache() {
+        switch (cache) {
+        case "engine":
+            return new AnalysisCache(cacheSize, extractor(), AnalysisCacheImpl.ENGINE);
+        case "tinylfu":
+            return new AnalysisCache(cacheSize, extractor(), AnalysisCacheImpl.TINYLFU);
+        case "off":
+            return new AnalysisCache(0, new CopyingInputExtractor(Short.MAX_VALUE));
+        default:
+            throw new IllegalArgumentException("unknown cache parameter: " + cache);
+        }
+    }
+
+    private static InputExtractor extractor() {
+        return new ChainedExtractor(InputExtractorBootstrap.ZERO_COPY, new CopyingInputExtractor(Short.MAX_VALUE));
+    }
+
+    private Analyzer chain(SplitMode mode, UnaryOperator<TokenStream> filters) {
+        return new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                CachingTokenizer it = new CachingTokenizer(dictionary.newTokenizer(), mode, analysisCache);
+                Tokenizer source = new SudachiTokenizer(it, true, AttributeFactory.DEFAULT_ATTRIBUTE_FACTORY);
+                return new TokenStreamComponents(source, filters.apply(source));
+            }
+        };
+    }
+
+    /** Per-thread secondary metrics, reported as rates per second. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long tokens;
+        public long bytes;
+    }
+
+    private static long analyzeCorpus(Analyzer analyzer, BenchmarkEnvironment env, Counters counters)
+            throws IOException {
+        long tokens = 0;
+        long chars = 0;
+        for (String document : env.documents) {
+            try (TokenStream stream = analyzer.tokenStream("text", document)) {
+                CharTermAttribute term = stream.getAttribute(CharTermAttribute.class);
+                stream.reset();
+                while (stream.incrementToken()) {
+                    tokens += 1;
+                    chars += term.length();
+                }
+                stream.end();
+            }
+        }
+        counters.tokens += tokens;
+        counters.bytes += env.totalBytes;
+        return chars;
+    }
+
+    @Benchmark
+    public long tokenizer(BenchmarkEnvironment env, Counters counters) throws IOException {
+        return analyzeCorpus(tokenizer, env, counters);
+    }
+
+    @Benchmark
+    public long splitSearch(BenchmarkEnvironment env, Counters counters) throws IOException {
+        return analyzeCorpus(splitSearch, env, counters);
+    }
+
+    @Benchmark
+    public long splitExtended(BenchmarkEnvironment env, Counters counters) throws IOException {
+        return analyzeCorpus(splitExtended, env, counters);
+    }
+
+    @Benchmark
+    public long baseForm(BenchmarkEnvironment env, Counters counters) throws IOException {
+        return analyzeCorpus(baseForm, env, counters);
+    }
+
+    @Benchmark
+    public long normalizedForm(BenchmarkEnvironment env, Counters counters) throws IOException {
+        return analyzeCorpus(normalizedForm, env, counters);
+    }
+
+    @Benchmark
+    public long readingForm(BenchmarkEnvironment env, Counters counters) throws IOException {
+        return analyzeCorpus(readingForm, env, counters);
+    }
+
+    @Benchmark
+    public long analyzer(BenchmarkEnvironment env, Counters counters) throws IOException {
+        return analyzeCorpus(analyzer, env, counters);
+    }
+}
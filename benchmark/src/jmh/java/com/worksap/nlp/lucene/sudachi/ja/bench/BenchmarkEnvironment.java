@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.lucene.sudachi.ja.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.worksap.nlp.elasticsearch.sudachi.plugin.ReloadableDictionary;
+import com.worksap.nlp.sudachi.Config;
+import com.worksap.nlp.sudachi.PathAnchor;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Corpus and dictionary shared by all benchmark threads.
+ * <p>
+ * Configured with system properties which are set by the Gradle build:
+ * <ul>
+ * <li>{@code sudachi.benchmark.corpus}: text file, one document per
+ * line</li>
+ * <li>{@code sudachi.benchmark.config}: Sudachi configuration file, resources
+ * are resolved relative to its directory</li>
+ * <li>{@code sudachi.benchmark.dictionary}: optional system dictionary which
+ * overrides the one from configuration</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+public class BenchmarkEnvironment {
+    List<String> documents;
+    long totalBytes;
+    ReloadableDictionary dictionary;
+
+    @Setup
+    public void setup() throws IOException {
+        Path corpus = requiredPath("sudachi.benchmark.corpus");
+        documents = Files.readAllLines(corpus, StandardCharsets.UTF_8).stream().filter(s -> !s.isEmpty())
+                .collect(Collectors.toList());
+        totalBytes = documents.stream().mapToLong(s -> s.getBytes(StandardCharsets.UTF_8).length).sum();
+
+        Path configPath = requiredPath("sudachi.benchmark.config");
+        Config config = Config.fromFile(configPath, PathAnchor.filesystem(configPath.getParent()));
+        String dictionaryPath = System.getProperty("sudachi.benchmark.dictionary", "");
+        if (!dictionaryPath.isEmpty()) {
+            config = config.systemDictionary(Paths.get(dictionaryPath));
+        }
+        dictionary = new ReloadableDictionary(config);
+    }
+
+    private static Path requiredPath(String property) {
+        String value = System.getProperty(property);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalStateException("system property " + property + " must be set");
+        }
+        return Paths.get(value);
+    }
+}
@@ -51,6 +51,8 @@ typealias ExtensiblePlugin = org.elasticsearch.plugins.ExtensiblePlugin
 
 typealias ExtensionLoader = org.elasticsearch.plugins.ExtensiblePlugin.ExtensionLoader
 
+typealias Setting<T> = org.elasticsearch.common.settings.Setting<T>
+
 fun parseStopWords(
     environment: Environment?,
     settings: Settings?,
@@ -80,3 +82,30 @@ fun parseWords(
   return org.elasticsearch.index.analysis.Analysis.parseWords(
       environment, settings, name, defaultWords, namedStopWords, ignoreCase)
 }
+
+/** Parses a byte size like `256mb` or a percentage of the heap like `10%` into a number of bytes */
+fun parseBytesSizeOrHeapRatio(value: String, settingName: String): Long {
+  return org.elasticsearch.common.unit.MemorySizeValue.parseBytesSizeValueOrHeapRatio(
+          value, settingName)
+      .bytes
+}
+
+/** Node-scoped setting of a byte size or a percentage of the heap */
+fun nodeMemorySizeSetting(key: String, defaultValue: String) =
+    org.elasticsearch.common.settings.Setting.memorySizeSetting(
+        key, defaultValue, org.elasticsearch.common.settings.Setting.Property.NodeScope)
+
+/** Node-scoped boolean setting */
+fun nodeBooleanSetting(key: String, defaultValue: Boolean): Setting<Boolean> =
+    org.elasticsearch.common.settings.Setting.boolSetting(
+        key, defaultValue, org.elasticsearch.common.settings.Setting.Property.NodeScope)
+
+/** Node-scoped integer setting with a lower bound */
+fun nodeIntSetting(key: String, defaultValue: Int, minValue: Int): Setting<Int> =
+    org.elasticsearch.common.settings.Setting.intSetting(
+        key, defaultValue, minValue, org.elasticsearch.common.settings.Setting.Property.NodeScope)
+
+/** Node-scoped setting of a byte size */
+fun nodeByteSizeSetting(key: String, defaultValue: String) =
+    org.elasticsearch.common.settings.Setting.byteSizeSetting(
+        key, { _ -> defaultValue }, org.elasticsearch.common.settings.Setting.Property.NodeScope)
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("PackageDirectoryMismatch")
+
+package com.worksap.nlp.search.aliases
+
+/**
+ * This file must not contain any imports to ElasticSearch/OpenSearch classes. For clarity, all
+ * ElasticSearch/OpenSearch files must be fully-qualified on every use.
+ */
+typealias RestController = org.opensearch.rest.RestController
+
+typealias RestHandler = org.opensearch.rest.RestHandler
+
+/** Base class of plugins which provide REST handlers */
+abstract class RestHandlerPlugin : Plugin(), org.opensearch.plugins.ActionPlugin {
+  override fun getRestHandlers(
+      settings: Settings,
+      restController: RestController,
+      clusterSettings: org.opensearch.common.settings.ClusterSettings,
+      indexScopedSettings: org.opensearch.common.settings.IndexScopedSettings,
+      settingsFilter: org.opensearch.common.settings.SettingsFilter,
+      indexNameExpressionResolver: org.opensearch.cluster.metadata.IndexNameExpressionResolver,
+      nodesInCluster: java.util.function.Supplier<org.opensearch.cluster.node.DiscoveryNodes>
+  ): List<RestHandler> {
+    return restHandlers(restController)
+  }
+
+  abstract fun restHandlers(controller: RestController): List<RestHandler>
+}
+
+/** Handler of GET requests to [paths] which responds with a JSON object built by [respond] */
+abstract class JsonGetRestHandler(controller: RestController, private val paths: List<String>) :
+    org.opensearch.rest.BaseRestHandler() {
+  override fun routes(): List<org.opensearch.rest.RestHandler.Route> {
+    return paths.map {
+      org.opensearch.rest.RestHandler.Route(org.opensearch.rest.RestRequest.Method.GET, it)
+    }
+  }
+
+  override fun prepareRequest(
+      request: org.opensearch.rest.RestRequest,
+      client: org.opensearch.client.node.NodeClient
+  ): org.opensearch.rest.BaseRestHandler.RestChannelConsumer {
+    val content = respond()
+    return org.opensearch.rest.BaseRestHandler.RestChannelConsumer { channel ->
+      val builder = channel.newBuilder()
+      builder.map(content)
+      channel.sendResponse(org.opensearch.rest.BytesRestResponse(RestStatus.OK, builder))
+    }
+  }
+
+  abstract fun respond(): Map<String, Any?>
+}
+
+/**
+ * Handler of POST requests to [paths] which responds with a JSON object produced asynchronously by
+ * [respond]
+ */
+abstract class JsonPostRestHandler(controller: RestController, private val paths: List<String>) :
+    org.opensearch.rest.BaseRestHandler() {
+  override fun routes(): List<org.opensearch.rest.RestHandler.Route> {
+    return paths.map {
+      org.opensearch.rest.RestHandler.Route(org.opensearch.rest.RestRequest.Method.POST, it)
+    }
+  }
+
+  override fun prepareRequest(
+      request: org.opensearch.rest.RestRequest,
+      client: org.opensearch.client.node.NodeClient
+  ): org.opensearch.rest.BaseRestHandler.RestChannelConsumer {
+    return org.opensearch.rest.BaseRestHandler.RestChannelConsumer { channel ->
+      respond().whenComplete { content, error ->
+        if (error != null) {
+          val cause = (error as? java.util.concurrent.CompletionException)?.cause ?: error
+          channel.sendResponse(
+              org.opensearch.rest.BytesRestResponse(
+                  channel, cause as? Exception ?: RuntimeException(cause)))
+        } else {
+          val builder = channel.newBuilder()
+          builder.map(content)
+          channel.sendResponse(org.opensearch.rest.BytesRestResponse(RestStatus.OK, builder))
+        }
+      }
+    }
+  }
+
+  abstract fun respond(): java.util.concurrent.CompletionStage<Map<String, Any?>>
+}
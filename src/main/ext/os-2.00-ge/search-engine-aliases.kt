@@ -50,6 +50,8 @@ typealias CacheBuilder<K, V> = org.opensearch.common.cache.CacheBuilder<K, V>
 
 typealias ExtensionLoader = org.opensearch.plugins.ExtensiblePlugin.ExtensionLoader
 
+typealias Setting<T> = org.opensearch.common.settings.Setting<T>
+
 fun parseStopWords(
     environment: Environment?,
     settings: Settings?,
@@ -79,3 +81,30 @@ fun parseWords(
   return org.opensearch.index.analysis.Analysis.parseWords(
       environment, settings, name, defaultWords, namedStopWords, ignoreCase)
 }
+
+/** Parses a byte size like `256mb` or a percentage of the heap like `10%` into a number of bytes */
+fun parseBytesSizeOrHeapRatio(value: String, settingName: String): Long {
+  return org.opensearch.common.unit.MemorySizeValue.parseBytesSizeValueOrHeapRatio(
+          value, settingName)
+      .bytes
+}
+
+/** Node-scoped setting of a byte size or a percentage of the heap */
+fun nodeMemorySizeSetting(key: String, defaultValue: String) =
+    org.opensearch.common.settings.Setting.memorySizeSetting(
+        key, defaultValue, org.opensearch.common.settings.Setting.Property.NodeScope)
+
+/** Node-scoped boolean setting */
+fun nodeBooleanSetting(key: String, defaultValue: Boolean): Setting<Boolean> =
+    org.opensearch.common.settings.Setting.boolSetting(
+        key, defaultValue, org.opensearch.common.settings.Setting.Property.NodeScope)
+
+/** Node-scoped integer setting with a lower bound */
+fun nodeIntSetting(key: String, defaultValue: Int, minValue: Int): Setting<Int> =
+    org.opensearch.common.settings.Setting.intSetting(
+        key, defaultValue, minValue, org.opensearch.common.settings.Setting.Property.NodeScope)
+
+/** Node-scoped setting of a byte size */
+fun nodeByteSizeSetting(key: String, defaultValue: String) =
+    org.opensearch.common.settings.Setting.byteSizeSetting(
+        key, { _ -> defaultValue }, org.opensearch.common.settings.Setting.Property.NodeScope)
@@ -16,6 +16,7 @@
 
 package com.worksap.nlp.elasticsearch.sudachi
 
+import com.worksap.nlp.lucene.sudachi.ja.NonCachedAnalysis
 import com.worksap.nlp.search.aliases.Environment
 import com.worksap.nlp.search.aliases.Settings
 import com.worksap.nlp.sudachi.Config
@@ -39,6 +40,13 @@ class ConfigAdapter(anchor: PathAnchor, settings: Settings, env: Environment) {
 
   val mode = splitMode(settings)
 
+  val maxChunkLength: Int = maxChunkLength(settings)
+
+  val parallelAnalysis: Boolean = settings.getAsBoolean(PARAM_PARALLEL_ANALYSIS, false)
+
+  /** File of inputs to analyze into the cache in the background, relative to `resources_path` */
+  val cacheWarmup: Path? = settings.get(PARAM_CACHE_WARMUP)?.let { cacheWarmupPath(basePath, it) }
+
   private fun settingsFile(settings: Settings): Config {
     val settingsPath = settings.get(PARAM_SETTINGS_PATH)
     return if (settingsPath == null) {
@@ -54,6 +62,9 @@ class ConfigAdapter(anchor: PathAnchor, settings: Settings, env: Environment) {
     const val PARAM_SETTINGS_PATH = "settings_path"
     const val PARAM_ADDITIONAL_SETTINGS = "additional_settings"
     const val PARAM_DISCARD_PUNCTUATION = "discard_punctuation"
+    const val PARAM_MAX_CHUNK_LENGTH = "max_chunk_length"
+    const val PARAM_PARALLEL_ANALYSIS = "parallel_analysis"
+    const val PARAM_CACHE_WARMUP = "cache_warmup"
 
     private object SplitModeFlag : EnumFlag<SplitMode>("split_mode", SplitMode.C)
 
@@ -67,6 +78,35 @@ class ConfigAdapter(anchor: PathAnchor, settings: Settings, env: Environment) {
       return SplitModeFlag.get(settings)
     }
 
+    @JvmStatic
+    fun maxChunkLength(settings: Settings): Int {
+      val value =
+          settings.getAsInt(PARAM_MAX_CHUNK_LENGTH, NonCachedAnalysis.DEFAULT_MAX_CHUNK_LENGTH)
+      if (value < 0 || value == 1) {
+        throw IllegalArgumentException(
+            "$PARAM_MAX_CHUNK_LENGTH must be 0 or at least 2, was $value",
+        )
+      }
+      return value
+    }
+
+    /**
+     * Resolve [value] of `cache_warmup` against [basePath].
+     *
+     * @throws IllegalArgumentException if the file is outside of [basePath]
+     */
+    @JvmStatic
+    fun cacheWarmupPath(basePath: Path, value: String): Path {
+      val base = basePath.toAbsolutePath().normalize()
+      val resolved = base.resolve(value).normalize()
+      if (!resolved.startsWith(base)) {
+        throw IllegalArgumentException(
+            "$PARAM_CACHE_WARMUP must be a file in $base, was $value",
+        )
+      }
+      return resolved
+    }
+
     @JvmStatic
     fun resourcesPath(env: Environment, settings: Settings): Path {
       return env.configFile().resolve(settings.get("resources_path", "sudachi"))
@@ -22,6 +22,7 @@ import com.worksap.nlp.elasticsearch.sudachi.plugin.DictionaryService
 import com.worksap.nlp.lucene.sudachi.ja.SudachiAnalyzer
 import com.worksap.nlp.search.aliases.*
 import com.worksap.nlp.search.aliases.AbstractIndexAnalyzerProvider
+import java.util.function.Supplier
 import org.apache.lucene.analysis.Analyzer
 import org.apache.lucene.analysis.CharArraySet
 
@@ -39,19 +40,25 @@ class SudachiAnalyzerProvider(
     val stopWords: Set<*> =
         parseStopWords(env, settings, SudachiAnalyzer.getDefaultStopSet(), false)
     val configs = ConfigAdapter(dictionaryService.anchor, settings!!, env!!)
-    val dictionary = dictionaryService.forConfig(configs.compiled)
+    val lease = dictionaryService.acquire(configs.compiled)
     val cache =
         analysisCache.analysisCache(
-            indexSettings.index.name, configs.compiled, configs.mode, settings)
+            indexSettings.index.name, configs.compiled, configs.mode, settings, env)
+    configs.cacheWarmup?.let { file ->
+      lease.whenLoaded { analysisCache.warmup(indexSettings.index.name, cache, it, file) }
+    }
     analyzer =
         SudachiAnalyzer(
-            dictionary,
+            Supplier { lease.dictionary },
             cache,
             configs.discardPunctuation,
             configs.mode,
             CharArraySet.copy(stopWords),
             SudachiAnalyzer.getDefaultStopTags(),
+            configs.maxChunkLength,
+            analysisCache.parallelPool(indexSettings.index.name, configs.parallelAnalysis),
         )
+    lease.tieTo(analyzer)
   }
 
   override fun get(): SudachiAnalyzer {
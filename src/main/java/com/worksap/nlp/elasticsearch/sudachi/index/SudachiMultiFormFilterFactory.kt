@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.index
+
+import com.worksap.nlp.lucene.sudachi.ja.SudachiMultiFormFilter
+import com.worksap.nlp.lucene.sudachi.ja.SudachiMultiFormFilterFactory as LuceneFactory
+import com.worksap.nlp.search.aliases.AbstractTokenFilterFactory
+import com.worksap.nlp.search.aliases.Environment
+import com.worksap.nlp.search.aliases.IndexSettings
+import com.worksap.nlp.search.aliases.Settings
+import org.apache.lucene.analysis.TokenStream
+
+class SudachiMultiFormFilterFactory(
+    indexSettings: IndexSettings?,
+    env: Environment?,
+    name: String?,
+    settings: Settings
+) : AbstractTokenFilterFactory(indexSettings, env, name, settings) {
+  private val forms =
+      settings.getAsList("forms", LuceneFactory.DEFAULT_FORMS.split(',')).map {
+        val kind = LuceneFactory.parseKind(it.trim())
+        val form = kind.name.lowercase()
+        SudachiMultiFormFilter.Form(
+            kind, settings.get("prefixes.$form", ""), settings.get("types.$form", form))
+      }
+
+  init {
+    require(forms.isNotEmpty()) { "forms of $name must not be empty" }
+  }
+
+  override fun create(tokenStream: TokenStream): TokenStream {
+    return SudachiMultiFormFilter(tokenStream, forms)
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.worksap.nlp.elasticsearch.sudachi.index
 
+import com.worksap.nlp.lucene.sudachi.ja.PosIdMatcher
 import com.worksap.nlp.lucene.sudachi.ja.SudachiPartOfSpeechStopFilter
 import com.worksap.nlp.lucene.sudachi.ja.attributes.SudachiAttribute
 import com.worksap.nlp.lucene.sudachi.ja.existingAttribute
@@ -45,7 +46,7 @@ class SudachiPartOfSpeechFilterFactory(
     } else {
       val sudachi = tokenStream.existingAttribute<SudachiAttribute>()
       val dic = sudachi.dictionary
-      val matcher = dic.reloadable { it.posMatcher(stopTags) }
+      val matcher = dic.reloadable { PosIdMatcher.of(it, stopTags) }
       SudachiPartOfSpeechStopFilter(tokenStream, matcher)
     }
   }
@@ -34,7 +34,7 @@ class SudachiTokenizerFactory(
     private val caches: AnalysisCacheService,
     indexSettings: IndexSettings,
     private val env: Environment,
-    name: String,
+    private val name: String,
     settings: Settings
 ) : AbstractTokenizerFactory(indexSettings, env, name, settings) {
 
@@ -54,14 +54,28 @@ class SudachiTokenizerFactory(
 
   private val config = ConfigAdapter(service.anchor, settings, env)
 
-  private val dictionary by lazy { service.forConfig(config.compiled) }
+  private val lease = service.acquire(config.compiled).tieTo(this)
+
+  private val dictionary by lazy { lease.dictionary }
 
   private val cache by lazy {
-    caches.analysisCache(indexSettings.index.name, config.compiled, mode, settings)
+    caches.analysisCache(indexSettings.index.name, config.compiled, mode, settings, env)
+  }
+
+  private val pool by lazy {
+    caches.parallelPool(indexSettings.index.name, config.parallelAnalysis)
+  }
+
+  init {
+    config.cacheWarmup?.let { file ->
+      lease.whenLoaded { caches.warmup(indexSettings.index.name, cache, it, file) }
+    }
   }
 
   override fun create(): Tokenizer {
-    val tok = CachingTokenizer(dictionary.newTokenizer(), mode, cache)
-    return SudachiTokenizer(tok, config.discardPunctuation)
+    val tok = CachingTokenizer(dictionary.newTokenizer(), mode, cache, config.maxChunkLength, pool)
+    val tokenizer = SudachiTokenizer(tok, config.discardPunctuation)
+    tokenizer.statsLabel = name
+    return tokenizer
   }
 }
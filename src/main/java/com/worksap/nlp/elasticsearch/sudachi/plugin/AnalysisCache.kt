@@ -17,59 +17,352 @@
 package com.worksap.nlp.elasticsearch.sudachi.plugin
 
 import com.worksap.nlp.lucene.sudachi.ja.CachedAnalysis
+import com.worksap.nlp.lucene.sudachi.ja.CompactMorphemeList
 import com.worksap.nlp.lucene.sudachi.ja.MorphemeIterator
 import com.worksap.nlp.lucene.sudachi.ja.NonCachedAnalysis
+import com.worksap.nlp.lucene.sudachi.ja.SentenceCachedAnalysis
 import com.worksap.nlp.lucene.sudachi.ja.input.ConcatenatingReader
+import com.worksap.nlp.lucene.sudachi.ja.input.ExtractionResult
 import com.worksap.nlp.lucene.sudachi.ja.input.InputExtractor
-import com.worksap.nlp.search.aliases.CacheBuilder
-import com.worksap.nlp.sudachi.MorphemeList
+import com.worksap.nlp.sudachi.Dictionary
 import com.worksap.nlp.sudachi.Tokenizer
 import com.worksap.nlp.sudachi.Tokenizer.SplitMode
 import java.io.Reader
+import java.util.concurrent.atomic.LongAdder
 
 /**
- * Cache analysis results using ES-based cache logic.
+ * Cache analysis results in an [AnalysisStorage].
  *
- * Analysis are always done in C mode and cached. Splitting is done after caching on-demand as it is
- * a relatively cheap operation.
+ * The storage is either private for the cache and bounded by [maximumWeight] bytes of estimated
+ * retained heap size of cached entries, or a node-level [SharedAnalysisCache].
+ *
+ * Analysis are always done in C mode and cached. Results are stored as [CompactMorphemeList] which
+ * does not retain analysis internals and looks up morpheme information in the dictionary on access.
+ * A and B mode splits are precomputed, so any mode can be served from the cached entry.
+ *
+ * Inputs which are longer than the extractor can handle are cached sentence by sentence if
+ * [cacheSentences] is set, see [SentenceCachedAnalysis].
+ *
+ * Results of the last few inputs of each thread are kept in [RecentInputs], so analyzing the same
+ * string instance for several sub-fields of a document does it only once. This includes inputs
+ * which are too long to be cached as a whole, up to the length of a chunk of non-cached analysis.
+ * Longer inputs are streamed as usual, so memory use does not depend on the input length.
+ *
+ * If a [persistent] tier is given, it is consulted when an input is not found in the storage, and
+ * newly analyzed inputs are written to it.
+ *
+ * When the dictionary is reloaded, the cache is [invalidated][invalidate]. Analyses which are still
+ * running with the previous dictionary are not cached afterwards.
  */
-class AnalysisCache(private val capacity: Int, private val extractor: InputExtractor) {
-  private val cache =
-      CacheBuilder.builder<String, MorphemeList>()
-          .setMaximumWeight(capacity * 64 * 1024L)
-          .weigher { i, ml -> i.length * 4L + ml.size * 64L }
-          .build()
+class AnalysisCache
+internal constructor(
+    storage: AnalysisStorage?,
+    private val extractor: InputExtractor,
+    private val cacheSentences: Boolean = true,
+    private val persistent: PersistentAnalysisCache? = null,
+) {
+  @JvmOverloads
+  constructor(
+      maximumWeight: Long,
+      extractor: InputExtractor,
+      impl: AnalysisCacheImpl = AnalysisCacheImpl.ENGINE,
+      cacheSentences: Boolean = true,
+      persistent: PersistentAnalysisCache? = null,
+  ) : this(
+      if (maximumWeight > 0) PrivateStorage(maximumWeight, impl) else null,
+      extractor,
+      cacheSentences,
+      persistent)
+
+  @Volatile private var storage: AnalysisStorage? = storage
+
+  /** Dictionary which cached results belong to, `null` until the first reload */
+  @Volatile private var generation: Dictionary? = null
+
+  private val reused = LongAdder()
 
   /** Use [com.worksap.nlp.lucene.sudachi.ja.CachingTokenizer.tokenize] instead of this method. */
-  internal fun analyze(tokenizer: Tokenizer, mode: SplitMode, input: Reader): MorphemeIterator {
-    if (capacity <= 0) {
-      return NonCachedAnalysis(tokenizer, input, mode)
+  internal fun analyze(
+      tokenizer: Tokenizer,
+      dictionary: Dictionary,
+      mode: SplitMode,
+      input: Reader,
+      maxChunkLength: Int = NonCachedAnalysis.DEFAULT_MAX_CHUNK_LENGTH,
+      pool: ParallelAnalysisPool? = null
+  ): MorphemeIterator {
+    val parallel = pool?.session(dictionary)
+    val storage = storage
+    if (storage == null) {
+      return NonCachedAnalysis(tokenizer, input, mode, maxChunkLength, parallel)
     }
-    if (extractor.canExtract(input)) {
-      val extracted = extractor.extract(input)
-      if (extracted.remaining) {
-        if (extracted.data.isEmpty()) {
-          return NonCachedAnalysis(tokenizer, input, mode)
-        }
-        val reader = ConcatenatingReader(extracted.data, input)
-        return NonCachedAnalysis(tokenizer, reader, mode)
+    // sub-fields of a document read the same string instance, larger ones are streamed
+    val instance = extractor.instance(input)
+    if (instance != null && instance.length <= memoLimit(maxChunkLength)) {
+      var list = RecentInputs.get(instance, dictionary)
+      if (list != null) {
+        reused.increment()
       } else {
-        return cached(extracted.data, mode, tokenizer)
+        list = whole(storage, instance, input, tokenizer, dictionary, maxChunkLength, parallel)
+        RecentInputs.put(list)
       }
-    } else {
-      return NonCachedAnalysis(tokenizer, input, mode)
+      return CachedAnalysis(list.morphemeViews(mode))
+    }
+    if (!extractor.canExtract(input)) {
+      return NonCachedAnalysis(tokenizer, input, mode, maxChunkLength, parallel)
     }
+    val extracted = extractor.extract(input)
+    if (!extracted.remaining) {
+      return CachedAnalysis(
+          load(storage, extracted.data, tokenizer, dictionary).morphemeViews(mode))
+    }
+    return large(storage, extracted, input, mode, tokenizer, dictionary, maxChunkLength, parallel)
   }
 
-  private fun cached(input: String, mode: SplitMode, tokenizer: Tokenizer): MorphemeIterator {
-    val list = cache.computeIfAbsent(input) { k -> tokenizer.tokenize(SplitMode.C, k) }
-    return CachedAnalysis(list.split(mode))
+  /**
+   * Maximum length of inputs which are kept in [RecentInputs].
+   *
+   * Such inputs are analyzed at once anyway, so packing them as a whole does not raise memory use
+   * of the analysis.
+   */
+  private fun memoLimit(maxChunkLength: Int): Int =
+      if (maxChunkLength > 0) maxChunkLength else NonCachedAnalysis.DEFAULT_MAX_CHUNK_LENGTH
+
+  /**
+   * Analysis of the whole [instance] which [input] reads, in C mode.
+   *
+   * Inputs which are not cached as a whole are analyzed as usual and packed afterwards.
+   */
+  private fun whole(
+      storage: AnalysisStorage,
+      instance: String,
+      input: Reader,
+      tokenizer: Tokenizer,
+      dictionary: Dictionary,
+      maxChunkLength: Int,
+      parallel: ParallelAnalysisPool.Session?
+  ): CompactMorphemeList {
+    val analysis =
+        if (extractor.canExtract(input)) {
+          val extracted = extractor.extract(input)
+          if (!extracted.remaining) {
+            return load(storage, extracted.data, tokenizer, dictionary)
+          }
+          large(
+              storage,
+              extracted,
+              input,
+              SplitMode.C,
+              tokenizer,
+              dictionary,
+              maxChunkLength,
+              parallel)
+        } else {
+          NonCachedAnalysis(tokenizer, input, SplitMode.C, maxChunkLength, parallel)
+        }
+    return CompactMorphemeList.compact(instance, analysis, dictionary)
+  }
+
+  /** Analysis of an input which is longer than the extractor can handle */
+  private fun large(
+      storage: AnalysisStorage,
+      extracted: ExtractionResult,
+      input: Reader,
+      mode: SplitMode,
+      tokenizer: Tokenizer,
+      dictionary: Dictionary,
+      maxChunkLength: Int,
+      parallel: ParallelAnalysisPool.Session?
+  ): MorphemeIterator {
+    val reader = if (extracted.data.isEmpty()) input else ConcatenatingReader(extracted.data, input)
+    if (cacheSentences) {
+      return SentenceCachedAnalysis(reader, mode, maxChunkLength) {
+        load(storage, it, tokenizer, dictionary)
+      }
+    }
+    return NonCachedAnalysis(tokenizer, reader, mode, maxChunkLength, parallel)
+  }
+
+  private fun load(
+      storage: AnalysisStorage,
+      input: String,
+      tokenizer: Tokenizer,
+      dictionary: Dictionary
+  ): CompactMorphemeList {
+    val current = generation
+    if (current != null && current !== dictionary) {
+      // analysis was started before a reload, its results must not be cached
+      return analyze(input, tokenizer, dictionary)
+    }
+    return storage.computeIfAbsent(input, dictionary) { k ->
+      persistent?.get(k, dictionary)
+          ?: analyze(k, tokenizer, dictionary).also { persistent?.put(it) }
+    }
+  }
+
+  private fun analyze(input: String, tokenizer: Tokenizer, dictionary: Dictionary) =
+      CompactMorphemeList.compact(input, tokenizer.tokenize(SplitMode.C, input), dictionary)
+
+  /** Drop cached results, because [dictionary] replaces the one they were analyzed with */
+  internal fun invalidate(dictionary: Dictionary) {
+    // analyze() reads the storage before the generation, so a cleared storage is never filled
+    // with results of the previous dictionary
+    generation = dictionary
+    storage = storage?.cleared()
+  }
+
+  /** Whether results are stored, disabled caches analyze every input */
+  val enabled: Boolean
+    get() = storage != null
+
+  fun stats(): AnalysisCacheStats =
+      (storage?.stats() ?: AnalysisCacheStats.EMPTY).copy(reused = reused.sum())
+}
+
+/** Storage of analysis results of an [AnalysisCache] */
+internal interface AnalysisStorage {
+  fun computeIfAbsent(
+      input: String,
+      dictionary: Dictionary,
+      loader: (String) -> CompactMorphemeList
+  ): CompactMorphemeList
+
+  fun stats(): AnalysisCacheStats
+
+  /** Storage without the entries of this one, possibly this one, which continues its statistics */
+  fun cleared(): AnalysisStorage
+}
+
+/** Counters of accesses to an [AnalysisStorage] */
+internal class AccessCounters {
+  private val hits = LongAdder()
+  private val misses = LongAdder()
+  private val loadedWeight = LongAdder()
+  private val hitNanos = LongAdder()
+  private val missNanos = LongAdder()
+
+  /**
+   * Record an access which was started at [startNanos].
+   *
+   * @param loaded weight of the loaded entry, or a negative value if the access was a hit
+   */
+  fun record(startNanos: Long, loaded: Long) {
+    val elapsed = System.nanoTime() - startNanos
+    if (loaded < 0) {
+      hits.increment()
+      hitNanos.add(elapsed)
+    } else {
+      misses.increment()
+      missNanos.add(elapsed)
+      loadedWeight.add(loaded)
+    }
   }
 
   fun stats(): AnalysisCacheStats {
-    val stats = cache.stats()
-    return AnalysisCacheStats(hits = stats.hits, misses = stats.misses, evictions = stats.evictions)
+    return AnalysisCacheStats(
+        hits = hits.sum(),
+        misses = misses.sum(),
+        evictions = 0,
+        loadedWeight = loadedWeight.sum(),
+        hitNanos = hitNanos.sum(),
+        missNanos = missNanos.sum(),
+    )
+  }
+}
+
+/**
+ * Storage which is owned by a single cache.
+ *
+ * Dictionary is not a part of the key: dictionary of a cache does not change.
+ */
+private class PrivateStorage(
+    private val maximumWeight: Long,
+    private val impl: AnalysisCacheImpl,
+    private val counters: AccessCounters = AccessCounters(),
+) : AnalysisStorage {
+  private val cache =
+      impl.create<String, CompactMorphemeList>(maximumWeight, { _, ml -> weight(ml) })
+
+  private fun weight(list: CompactMorphemeList): Long {
+    return RetainedSize.compactMorphemeList(list) + RetainedSize.ENTRY_OVERHEAD
+  }
+
+  override fun computeIfAbsent(
+      input: String,
+      dictionary: Dictionary,
+      loader: (String) -> CompactMorphemeList
+  ): CompactMorphemeList {
+    val start = System.nanoTime()
+    var loaded = -1L
+    val result = cache.computeIfAbsent(input) { k -> loader(k).also { loaded = weight(it) } }
+    counters.record(start, loaded)
+    return result
+  }
+
+  override fun cleared(): AnalysisStorage = PrivateStorage(maximumWeight, impl, counters)
+
+  override fun stats(): AnalysisCacheStats {
+    val backend = cache.stats()
+    return counters
+        .stats()
+        .copy(evictions = backend.evictions, weight = backend.weight, count = backend.count)
   }
 }
 
-data class AnalysisCacheStats(val hits: Long, val misses: Long, val evictions: Long)
+/**
+ * Statistics of an analysis cache.
+ *
+ * @param loadedWeight estimated size in bytes of all analysis results which were loaded into the
+ * cache, including ones which were evicted later
+ * @param weight estimated size in bytes of entries which are currently in the cache
+ * @param count number of entries which are currently in the cache
+ * @param hitNanos total time spent in cache lookups which were hits
+ * @param missNanos total time spent in cache lookups which were misses, including analysis
+ * @param reused number of inputs whose result was reused from a recent analysis of the same string
+ * instance on the same thread, without a cache lookup
+ */
+data class AnalysisCacheStats(
+    val hits: Long,
+    val misses: Long,
+    val evictions: Long,
+    val loadedWeight: Long = 0,
+    val weight: Long = 0,
+    val count: Long = 0,
+    val hitNanos: Long = 0,
+    val missNanos: Long = 0,
+    val reused: Long = 0,
+) {
+  operator fun plus(other: AnalysisCacheStats): AnalysisCacheStats {
+    return AnalysisCacheStats(
+        hits = hits + other.hits,
+        misses = misses + other.misses,
+        evictions = evictions + other.evictions,
+        loadedWeight = loadedWeight + other.loadedWeight,
+        weight = weight + other.weight,
+        count = count + other.count,
+        hitNanos = hitNanos + other.hitNanos,
+        missNanos = missNanos + other.missNanos,
+        reused = reused + other.reused,
+    )
+  }
+
+  /** Representation for REST responses */
+  fun toMap(): Map<String, Any> {
+    return mapOf(
+        "hits" to hits,
+        "misses" to misses,
+        "evictions" to evictions,
+        "loaded_in_bytes" to loadedWeight,
+        "size_in_bytes" to weight,
+        "count" to count,
+        "hit_time_avg_in_nanos" to average(hitNanos, hits),
+        "miss_time_avg_in_nanos" to average(missNanos, misses),
+        "reused" to reused,
+    )
+  }
+
+  private fun average(total: Long, count: Long): Long = if (count == 0L) 0 else total / count
+
+  companion object {
+    @JvmField val EMPTY = AnalysisCacheStats(0, 0, 0)
+  }
+}
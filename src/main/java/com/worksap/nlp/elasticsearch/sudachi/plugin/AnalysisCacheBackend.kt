@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import com.worksap.nlp.search.aliases.CacheBuilder
+
+/** Storage of [AnalysisCache], bounded by total weight of its entries. */
+interface AnalysisCacheBackend<K : Any, V : Any> {
+  /**
+   * Returns a cached value for the key, computing and caching it when it is absent.
+   *
+   * Values computed by [loader] can be discarded without caching if they are too large.
+   */
+  fun computeIfAbsent(key: K, loader: (K) -> V): V
+
+  /** Remove all entries whose keys match [predicate], they are not counted as evictions */
+  fun removeIf(predicate: (K) -> Boolean)
+
+  /** Statistics of the backend: hits, misses, evictions, current weight and count */
+  fun stats(): AnalysisCacheStats
+}
+
+/** Receives entries which are added to and removed from an [AnalysisCacheBackend] */
+interface EntryListener<K, V> {
+  fun added(key: K, value: V, weight: Long)
+
+  /** [evicted] is false if the entry was removed by [AnalysisCacheBackend.removeIf] */
+  fun removed(key: K, value: V, weight: Long, evicted: Boolean)
+}
+
+/** Backend which uses the cache implementation of the search engine */
+class EngineCacheBackend<K : Any, V : Any>
+@JvmOverloads
+constructor(
+    maximumWeight: Long,
+    private val weigher: (K, V) -> Long,
+    private val listener: EntryListener<K, V>? = null,
+) : AnalysisCacheBackend<K, V> {
+  private val cache =
+      CacheBuilder.builder<K, V>()
+          .setMaximumWeight(maximumWeight)
+          .weigher { k, v -> weigher(k, v) }
+          .also { builder ->
+            if (listener != null) {
+              builder.removalListener { n ->
+                listener.removed(
+                    n.key, n.value, weigher(n.key, n.value), n.removalReason.name == "EVICTED")
+              }
+            }
+          }
+          .build()
+
+  override fun computeIfAbsent(key: K, loader: (K) -> V): V {
+    return cache.computeIfAbsent(key) { k ->
+      loader(k).also { listener?.added(k, it, weigher(k, it)) }
+    }
+  }
+
+  override fun removeIf(predicate: (K) -> Boolean) {
+    val matching = cache.keys().filter(predicate)
+    matching.forEach { cache.invalidate(it) }
+  }
+
+  override fun stats(): AnalysisCacheStats {
+    val stats = cache.stats()
+    return AnalysisCacheStats(
+        hits = stats.hits,
+        misses = stats.misses,
+        evictions = stats.evictions,
+        weight = cache.weight(),
+        count = cache.count().toLong())
+  }
+}
+
+/** Available implementations of [AnalysisCacheBackend], selected by `cache-impl` setting. */
+enum class AnalysisCacheImpl {
+  /** Segmented LRU cache of the search engine */
+  ENGINE {
+    override fun <K : Any, V : Any> create(
+        maximumWeight: Long,
+        weigher: (K, V) -> Long,
+        listener: EntryListener<K, V>?
+    ): AnalysisCacheBackend<K, V> = EngineCacheBackend(maximumWeight, weigher, listener)
+  },
+  /** Lock-striped cache with W-TinyLFU admission and lock-free reads, see [TinyLfuCache] */
+  TINYLFU {
+    override fun <K : Any, V : Any> create(
+        maximumWeight: Long,
+        weigher: (K, V) -> Long,
+        listener: EntryListener<K, V>?
+    ): AnalysisCacheBackend<K, V> = TinyLfuCache(maximumWeight, weigher, listener = listener)
+  };
+
+  abstract fun <K : Any, V : Any> create(
+      maximumWeight: Long,
+      weigher: (K, V) -> Long,
+      listener: EntryListener<K, V>? = null
+  ): AnalysisCacheBackend<K, V>
+}
@@ -16,47 +16,339 @@
 
 package com.worksap.nlp.elasticsearch.sudachi.plugin
 
+import com.worksap.nlp.lucene.sudachi.ja.CurrentDictionary
 import com.worksap.nlp.lucene.sudachi.ja.input.InputExtractor
+import com.worksap.nlp.search.aliases.Environment
+import com.worksap.nlp.search.aliases.Setting
 import com.worksap.nlp.search.aliases.Settings
+import com.worksap.nlp.search.aliases.nodeByteSizeSetting
+import com.worksap.nlp.search.aliases.nodeDataPath
+import com.worksap.nlp.search.aliases.nodeIntSetting
+import com.worksap.nlp.search.aliases.nodeMemorySizeSetting
+import com.worksap.nlp.search.aliases.parseBytesSizeOrHeapRatio
 import com.worksap.nlp.sudachi.Config
+import com.worksap.nlp.sudachi.Dictionary
 import com.worksap.nlp.sudachi.Tokenizer.SplitMode
+import com.worksap.nlp.tools.EnumFlag
+import java.io.Closeable
+import java.io.IOException
 import java.lang.ref.WeakReference
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.Optional
+import java.util.WeakHashMap
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Future
 import org.apache.logging.log4j.LogManager
 
-class AnalysisCacheService {
-  data class Key(val indexName: String, val config: Config, val capacity: Int)
+/** Where cached analysis results are stored, selected by `cache-scope` setting */
+enum class AnalysisCacheScope {
+  /** Cache is private to the index */
+  INDEX,
+  /** Cache is shared between indices on the node, see [SharedAnalysisCache] */
+  NODE,
+}
+
+class AnalysisCacheService
+@JvmOverloads
+constructor(
+    nodeSettings: Settings,
+    /** Dictionary files, which remember checksums for fingerprints of persistent caches */
+    private val data: DictionaryData = DictionaryData(),
+) : Closeable, DictionaryReloadListener {
+  data class Key(
+      val indexName: String,
+      val config: Config,
+      val size: Long,
+      val impl: AnalysisCacheImpl,
+      val scope: AnalysisCacheScope,
+      val sentences: Boolean,
+  )
   // we use WeakReference here because the main reference will reside in per-index factories
   private val caches = ConcurrentHashMap<Key, WeakReference<AnalysisCache>>()
 
+  /** Node-level cache, `null` if it is disabled */
+  val shared: SharedAnalysisCache? =
+      SHARED_CACHE_SIZE.get(nodeSettings).bytes.let { size ->
+        if (size > 0) SharedAnalysisCache(size, AnalysisCacheImpl.TINYLFU) else null
+      }
+
+  /** Node-level pool for `parallel_analysis` analyzers, `null` if it is disabled */
+  private val parallelPool: ParallelAnalysisPool? =
+      PARALLEL_ANALYSIS_THREADS.get(nodeSettings).let { threads ->
+        if (threads > 0) ParallelAnalysisPool(threads) else null
+      }
+
+  /** Size of each persistent cache file, 0 if the persistent tier is disabled */
+  private val persistentCapacity: Int =
+      PERSISTENT_CACHE_SIZE.get(nodeSettings).bytes.coerceAtMost(Int.MAX_VALUE.toLong()).toInt()
+
+  /** Background filling of caches from `cache_warmup` files */
+  private val warmup = CacheWarmup(CACHE_WARMUP_RATE.get(nodeSettings))
+
+  private class Warmup(val dictionary: CurrentDictionary, var future: Future<*>)
+
+  /**
+   * Started warm-ups by cache and file, a cache is warmed up with each file once and again after
+   * each dictionary reload
+   */
+  private val warmups = WeakHashMap<AnalysisCache, MutableMap<Path, Warmup>>()
+
+  /** Persistent caches by file name, empty if a configuration can not be persisted */
+  private val persistentCaches = ConcurrentHashMap<String, Optional<PersistentAnalysisCache>>()
+
   companion object {
     private val logger = LogManager.getLogger(AnalysisCacheService::class.java)
+
+    /**
+     * Unit of `cache-size` values without a suffix, which were used before it became a byte size
+     */
+    private const val LEGACY_SIZE_UNIT = 64 * 1024L
+    private const val DEFAULT_SIZE = 32 * LEGACY_SIZE_UNIT
+
+    /** Memory budget of the node-level cache which is used by `cache-scope: node` analyzers */
+    @JvmField val SHARED_CACHE_SIZE = nodeMemorySizeSetting("sudachi.shared_cache.size", "0")
+
+    /** Number of threads which analyze chunks of large inputs of `parallel_analysis` analyzers */
+    @JvmField
+    val PARALLEL_ANALYSIS_THREADS = nodeIntSetting("sudachi.parallel_analysis.threads", 0, 0)
+
+    /** Size of the file of each dictionary configuration in the persistent cache tier */
+    @JvmField val PERSISTENT_CACHE_SIZE = nodeByteSizeSetting("sudachi.persistent_cache.size", "0")
+
+    /** Maximum number of inputs per second which are analyzed to warm up caches */
+    @JvmField val CACHE_WARMUP_RATE = nodeIntSetting("sudachi.cache_warmup.rate", 1000, 1)
+
+    @JvmStatic
+    fun settings(): List<Setting<*>> =
+        listOf(
+            SHARED_CACHE_SIZE, PARALLEL_ANALYSIS_THREADS, PERSISTENT_CACHE_SIZE, CACHE_WARMUP_RATE)
+
+    /**
+     * Parses `cache-size` setting into a number of bytes.
+     *
+     * The value is either a byte size (`256mb`), a percentage of the heap (`1%`) or a plain number
+     * of 64KiB units for compatibility with older versions.
+     */
+    @JvmStatic
+    fun cacheSize(settings: Settings): Long {
+      val raw = settings.get("cache-size") ?: return DEFAULT_SIZE
+      val units = raw.trim().toLongOrNull()
+      if (units != null) {
+        return units * LEGACY_SIZE_UNIT
+      }
+      return parseBytesSizeOrHeapRatio(raw, "cache-size")
+    }
   }
 
+  private object CacheImplFlag :
+      EnumFlag<AnalysisCacheImpl>("cache-impl", AnalysisCacheImpl.ENGINE)
+
+  private object CacheScopeFlag :
+      EnumFlag<AnalysisCacheScope>("cache-scope", AnalysisCacheScope.INDEX)
+
   fun analysisCache(
       indexName: String,
       config: Config,
       mode: SplitMode,
-      settings: Settings
+      settings: Settings,
+      env: Environment? = null
   ): AnalysisCache {
-    val capacity = settings.getAsInt("cache-size", 32)
-    val key = Key(indexName, config, capacity)
+    val size = cacheSize(settings)
+    val impl = CacheImplFlag.get(settings)
+    val scope = scope(indexName, settings)
+    val sentences = settings.getAsBoolean("cache-sentences", true)
+    val key = Key(indexName, config, size, impl, scope, sentences)
     val entry =
         caches.computeIfAbsent(key) { k ->
           val extractor = InputExtractor.make(settings)
           logger.debug(
-              "creating new cache service for {}, size={}, extractor={}",
+              "creating new cache service for {}, size={}, impl={}, scope={}, extractor={}",
               key,
-              k.capacity,
+              k.size,
+              k.impl,
+              k.scope,
               extractor)
-          val x = AnalysisCache(k.capacity, extractor)
+          val persistent = persistentCache(config, env)
+          val x =
+              when (k.scope) {
+                AnalysisCacheScope.INDEX ->
+                    AnalysisCache(k.size, extractor, k.impl, k.sentences, persistent)
+                AnalysisCacheScope.NODE -> {
+                  val storage = shared!!.storage()
+                  AnalysisCache(storage, extractor, k.sentences, persistent).also {
+                    shared.releaseWith(it, storage)
+                  }
+                }
+              }
           WeakReference(x)
         }
     val result = entry.get()
     if (result == null) {
       caches.remove(key)
       // retry creation via recursion
-      return analysisCache(indexName, config, mode, settings)
+      return analysisCache(indexName, config, mode, settings, env)
+    }
+    return result
+  }
+
+  /** Persistent cache tier for [config] in the data directory of the node, if it is enabled */
+  private fun persistentCache(config: Config, env: Environment?): PersistentAnalysisCache? {
+    if (persistentCapacity == 0 || env == null) {
+      return null
+    }
+    val name = PersistentAnalysisCache.fileName(config)
+    val cache =
+        persistentCaches.computeIfAbsent(name) {
+          Optional.ofNullable(openPersistentCache(config, nodeDataPath(env).resolve("sudachi"), it))
+        }
+    return cache.orElse(null)
+  }
+
+  private fun openPersistentCache(
+      config: Config,
+      directory: Path,
+      name: String
+  ): PersistentAnalysisCache? {
+    val fingerprint = PersistentAnalysisCache.fingerprint(config, data::checksum)
+    if (fingerprint == null) {
+      logger.warn(
+          "dictionaries are not files, persistent analysis cache is disabled for {}", config)
+      return null
+    }
+    return try {
+      Files.createDirectories(directory)
+      PersistentAnalysisCache(directory.resolve(name), fingerprint, persistentCapacity)
+    } catch (e: IOException) {
+      logger.warn("failed to open persistent analysis cache in {}", directory, e)
+      null
+    }
+  }
+
+  private fun scope(indexName: String, settings: Settings): AnalysisCacheScope {
+    val scope = CacheScopeFlag.get(settings)
+    if (scope == AnalysisCacheScope.NODE && shared == null) {
+      logger.warn(
+          "index [{}] uses node-level analysis cache, but {} is not set, using index-level cache",
+          indexName,
+          SHARED_CACHE_SIZE.key)
+      return AnalysisCacheScope.INDEX
+    }
+    return scope
+  }
+
+  /**
+   * Pool for parallel analysis of an index if it was [requested], or `null`.
+   *
+   * Falls back to sequential analysis with a warning if the pool is disabled on the node.
+   */
+  fun parallelPool(indexName: String, requested: Boolean): ParallelAnalysisPool? {
+    if (!requested) {
+      return null
+    }
+    if (parallelPool == null) {
+      logger.warn(
+          "index [{}] requests parallel analysis, but {} is not set, analyzing sequentially",
+          indexName,
+          PARALLEL_ANALYSIS_THREADS.key)
+    }
+    return parallelPool
+  }
+
+  /**
+   * Fill [cache] in the background with inputs from [file], analyzed with [dictionary].
+   *
+   * Does nothing if the cache is disabled or was already warmed up with the file.
+   *
+   * @return handle of the warm-up, or `null` if it was not started
+   */
+  fun warmup(
+      indexName: String,
+      cache: AnalysisCache,
+      dictionary: CurrentDictionary,
+      file: Path
+  ): Future<*>? {
+    if (!cache.enabled) {
+      logger.warn(
+          "index [{}] configures cache warm-up from {}, but its analysis cache is disabled",
+          indexName,
+          file)
+      return null
+    }
+    synchronized(warmups) {
+      val started = warmups.getOrPut(cache) { HashMap() }
+      if (file in started) {
+        return null
+      }
+      logger.debug("warming up analysis cache of index [{}] from {}", indexName, file)
+      val result = warmup.submit(cache, dictionary, file)
+      started[file] = Warmup(dictionary, result)
+      return result
+    }
+  }
+
+  private fun cachesOf(config: Config): List<AnalysisCache> {
+    return caches.entries.filter { it.key.config == config }.mapNotNull { it.value.get() }
+  }
+
+  /**
+   * Invalidate caches of [config] before its dictionary is replaced by [dictionary], so that
+   * results of the old dictionary are not served anymore.
+   */
+  override fun beforeReload(config: Config, dictionary: Dictionary) {
+    persistentCaches[PersistentAnalysisCache.fileName(config)]?.ifPresent {
+      // unreadable contents do not match the stored fingerprint, so the file is cleared
+      it.refresh(PersistentAnalysisCache.fingerprint(config, data::checksum) ?: 0L, dictionary)
+    }
+    cachesOf(config).forEach { it.invalidate(dictionary) }
+  }
+
+  /** Warm up caches of [config] again with the new dictionary */
+  override fun afterReload(config: Config) {
+    val invalidated = cachesOf(config)
+    synchronized(warmups) {
+      for (cache in invalidated) {
+        val started = warmups[cache] ?: continue
+        for ((file, w) in started) {
+          w.future.cancel(true)
+          w.future = warmup.submit(cache, w.dictionary, file)
+        }
+      }
+    }
+  }
+
+  override fun close() {
+    warmup.close()
+    parallelPool?.close()
+    persistentCaches.values.forEach { it.ifPresent(PersistentAnalysisCache::close) }
+  }
+
+  /** Statistics of live caches, summed up by index */
+  fun indexStats(): Map<String, AnalysisCacheStats> {
+    val result = HashMap<String, AnalysisCacheStats>()
+    for ((key, ref) in caches) {
+      val cache = ref.get() ?: continue
+      result.merge(key.indexName, cache.stats(), AnalysisCacheStats::plus)
+    }
+    return result
+  }
+
+  /**
+   * Statistics of caches on this node.
+   *
+   * Contains the sum over all indices, the node-level shared cache if it is enabled, and each
+   * index.
+   */
+  fun statsReport(): Map<String, Any> {
+    val indices = indexStats()
+    val result = LinkedHashMap<String, Any>()
+    result["total"] =
+        indices.values.fold(AnalysisCacheStats.EMPTY, AnalysisCacheStats::plus).toMap()
+    shared?.let { result["shared_cache"] = it.stats().toMap() }
+    result["indices"] = indices.toSortedMap().mapValues { it.value.toMap() }
+    val persistent = persistentCaches.filterValues { it.isPresent }
+    if (persistent.isNotEmpty()) {
+      result["persistent_cache"] = persistent.toSortedMap().mapValues { it.value.get().stats() }
     }
     return result
   }
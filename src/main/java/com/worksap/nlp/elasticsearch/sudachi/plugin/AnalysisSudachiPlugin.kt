@@ -18,6 +18,7 @@ package com.worksap.nlp.elasticsearch.sudachi.plugin
 
 import com.worksap.nlp.elasticsearch.sudachi.index.*
 import com.worksap.nlp.lucene.sudachi.ja.SudachiResourceAccess
+import com.worksap.nlp.lucene.sudachi.ja.util.Instrumentation
 import com.worksap.nlp.search.aliases.*
 import java.io.IOException
 import java.util.*
@@ -31,14 +32,22 @@ private inline fun <reified T> provider(
   return AnalysisProvider { a, b, c, d -> fn(a, b, c, d) }
 }
 
-class AnalysisSudachiPlugin(settings: Settings?) : Plugin(), AnalysisPlugin, ExtensiblePlugin {
-  private val cacheService = AnalysisCacheService()
+class AnalysisSudachiPlugin(settings: Settings?) :
+    RestHandlerPlugin(), AnalysisPlugin, ExtensiblePlugin {
+  // dictionary files are read once for both loading and persistent cache fingerprints
+  private val dictionaryData = DictionaryData()
+  private val cacheService = AnalysisCacheService(settings ?: Settings.EMPTY, dictionaryData)
   private val classloaders = ArrayList<ClassLoader>()
-  private val dictionaryService by lazy { DictionaryService(classloaders) }
+  private val dictionaryService by lazy {
+    DictionaryService.fromSettings(classloaders, settings ?: Settings.EMPTY, dictionaryData).also {
+      it.addReloadListener(cacheService)
+    }
+  }
 
   init {
     // for separated SPI we need to add plugin classloader to the classloader pile
     classloaders.add(javaClass.classLoader)
+    Instrumentation.enabled = INSTRUMENTATION_ENABLED.get(settings ?: Settings.EMPTY)
     logger.info("loaded Sudachi plugin")
   }
   // this method is guaranteed to run before any other methods
@@ -51,6 +60,7 @@ class AnalysisSudachiPlugin(settings: Settings?) : Plugin(), AnalysisPlugin, Ext
   override fun getTokenFilters(): Map<String, AnalysisProvider<TokenFilterFactory>> {
     return mapOf(
         "sudachi_baseform" to provider(::SudachiBaseFormFilterFactory),
+        "sudachi_multi_form" to provider(::SudachiMultiFormFilterFactory),
         "sudachi_normalizedform" to provider(::SudachiNormalizedFormFilterFactory),
         "sudachi_part_of_speech" to provider(::SudachiPartOfSpeechFilterFactory),
         "sudachi_readingform" to provider(::SudachiReadingFormFilterFactory),
@@ -70,12 +80,29 @@ class AnalysisSudachiPlugin(settings: Settings?) : Plugin(), AnalysisPlugin, Ext
     )
   }
 
+  override fun getSettings(): List<Setting<*>> {
+    return AnalysisCacheService.settings() + DictionaryService.settings() + INSTRUMENTATION_ENABLED
+  }
+
+  override fun restHandlers(controller: RestController): List<RestHandler> {
+    return listOf(
+        RestSudachiStatsAction(controller, cacheService, dictionaryService),
+        RestSudachiReloadAction(controller, dictionaryService),
+    )
+  }
+
   @Throws(IOException::class)
   override fun close() {
+    cacheService.close()
+    dictionaryService.close()
     super.close()
   }
 
   companion object {
     private val logger = LogManager.getLogger(AnalysisSudachiPlugin::class.java)
+
+    /** Record latencies of the analysis chain, see [Instrumentation] */
+    @JvmField
+    val INSTRUMENTATION_ENABLED = nodeBooleanSetting("sudachi.instrumentation.enabled", false)
   }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import com.worksap.nlp.lucene.sudachi.ja.CurrentDictionary
+import com.worksap.nlp.sudachi.Tokenizer.SplitMode
+import java.io.Closeable
+import java.io.IOException
+import java.io.StringReader
+import java.lang.ref.WeakReference
+import java.nio.channels.ClosedByInterruptException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import org.apache.logging.log4j.LogManager
+
+/**
+ * Background thread which fills analysis caches with inputs read from warm-up files.
+ *
+ * Each line of a file is an input. Inputs are analyzed one by one at most [rate] per second, so
+ * warm-up does not compete with indexing and search for CPU. A warm-up stops when it is cancelled,
+ * when its cache is no longer used by any index, or when the node shuts down.
+ */
+class CacheWarmup(private val rate: Int) : Closeable {
+  private val counter = AtomicInteger()
+  private val executor: ExecutorService =
+      ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, LinkedBlockingQueue()) { r ->
+        Thread(r, "sudachi-cache-warmup-${counter.incrementAndGet()}").also { it.isDaemon = true }
+      }
+
+  /**
+   * Schedule warm-up of [cache] with inputs from [file].
+   *
+   * @return handle of the warm-up, cancelling it interrupts the analysis
+   */
+  fun submit(cache: AnalysisCache, dictionary: CurrentDictionary, file: Path): Future<*> {
+    val ref = WeakReference(cache)
+    return executor.submit { run(ref, dictionary, file) }
+  }
+
+  private fun run(ref: WeakReference<AnalysisCache>, dictionary: CurrentDictionary, file: Path) {
+    val tokenizer = dictionary.newTokenizer()
+    val interval = TimeUnit.SECONDS.toNanos(1) / rate
+    var next = System.nanoTime()
+    var count = 0
+    try {
+      Files.newBufferedReader(file).use { reader ->
+        while (true) {
+          if (Thread.interrupted()) {
+            throw InterruptedException()
+          }
+          val line = reader.readLine() ?: break
+          if (line.isBlank()) {
+            continue
+          }
+          val cache = ref.get() ?: return
+          val sudachi = tokenizer.get()
+          val version =
+              (tokenizer as? ReloadableTokenizer)?.tokenizerDictionary() ?: dictionary.get()
+          val iter = cache.analyze(sudachi, version, SplitMode.C, StringReader(line))
+          while (iter.next() != null) {
+            // consume analysis to put it into the cache
+          }
+          count += 1
+          next += interval
+          val delay = next - System.nanoTime()
+          if (delay > 0) {
+            TimeUnit.NANOSECONDS.sleep(delay)
+          } else {
+            next = System.nanoTime()
+          }
+        }
+      }
+      logger.debug("warmed up analysis cache with {} inputs from {}", count, file)
+    } catch (e: InterruptedException) {
+      logger.debug("cancelled warm-up from {} after {} inputs", file, count)
+    } catch (e: ClosedByInterruptException) {
+      logger.debug("cancelled warm-up from {} after {} inputs", file, count)
+    } catch (e: IOException) {
+      logger.warn("failed to read analysis cache warm-up file {}", file, e)
+    } finally {
+      (tokenizer as? ReloadableTokenizer)?.release()
+    }
+  }
+
+  override fun close() {
+    executor.shutdownNow()
+  }
+
+  companion object {
+    private val logger = LogManager.getLogger(CacheWarmup::class.java)
+  }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import com.worksap.nlp.sudachi.Config
+import com.worksap.nlp.sudachi.MMap
+import com.worksap.nlp.sudachi.dictionary.BinaryDictionary
+import java.io.IOException
+import java.net.JarURLConnection
+import java.net.URI
+import java.net.URL
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.CRC32
+import java.util.zip.CheckedInputStream
+import org.apache.logging.log4j.LogManager
+
+/**
+ * Binary data of system and user dictionaries, shared between dictionary configurations.
+ *
+ * Data is identified by its location, size and checksum, so configurations which differ only in
+ * plugins, or which refer to the same files through different settings, read each file once. Files
+ * are first looked up by their location, size and modification time, so a file which is already
+ * shared is neither mapped nor hashed again. Each configuration still builds its own
+ * [BinaryDictionary] over the data: grammar and lexicon are modified by user dictionaries and
+ * plugins, but Sudachi copies the affected parts before writing, so the shared data is never
+ * modified.
+ *
+ * Data is always memory-mapped. Dictionaries which are packaged in jars of resource plugins are
+ * extracted to [extractDirectory] first, so they are not read into heap. Extracted files are reused
+ * while the jar is unchanged and deleted when their data is dropped.
+ *
+ * Each file is referenced by the [View]s which use it and is dropped when the last one is
+ * [released][release]. Dictionaries which are built over shared data must not be closed, as it
+ * would unmap the data of other configurations.
+ */
+class DictionaryData
+@JvmOverloads
+constructor(
+    /** Directory for extracted dictionaries, a temporary directory by default */
+    private val extractDirectory: Path? = null
+) {
+  internal data class Key(val location: String, val size: Int, val checksum: Long)
+
+  /** Identity of a file which is cheap to get: location, size and modification time */
+  private data class Stamp(val location: String, val size: Long, val modified: Long)
+
+  /** Shared data, with the [file] it was extracted to if any */
+  private class Entry(val buffer: ByteBuffer, val file: Path?) {
+    var refs = 0
+  }
+
+  /** Configuration with dictionaries built over shared data, and keys of the data */
+  class View internal constructor(val config: Config, internal val keys: List<Key>)
+
+  private val directory: Path by lazy {
+    if (extractDirectory != null) {
+      Files.createDirectories(extractDirectory)
+    } else {
+      Files.createTempDirectory("sudachi-dictionaries").also { it.toFile().deleteOnExit() }
+    }
+  }
+
+  /** Shared files, guarded by the lock of this object */
+  private val buffers = HashMap<Key, Entry>()
+
+  /** Number of times contents of a file were hashed */
+  internal val hashed = AtomicInteger()
+
+  /** Keys of files which were hashed, guarded by the lock of this object */
+  private val stamps = HashMap<Stamp, Key>()
+
+  /**
+   * Checksums of files by the latest stamp of their location, guarded by the lock of this object
+   */
+  private val checksums = HashMap<Stamp, Long>()
+
+  /** Number of distinct dictionary files */
+  val size: Int
+    get() = synchronized(this) { buffers.size }
+
+  /** Total size of distinct dictionary files */
+  val sizeInBytes: Long
+    get() = synchronized(this) { buffers.values.sumOf { it.buffer.capacity().toLong() } }
+
+  /**
+   * Configuration which is equal to [config], except that its dictionaries are built over shared
+   * data. The data is referenced until the view is [released][release].
+   */
+  fun view(config: Config): View {
+    val result = Config.empty()
+    val keys = ArrayList<Key>()
+    try {
+      val system = config.systemDictionary
+      if (system != null) {
+        val data = share(system, keys)
+        result.systemDictionary(
+            if (data == null) BinaryDictionary.loadSystem(system)
+            else BinaryDictionary.loadSystem(data))
+      }
+      for (user in config.userDictionaries) {
+        val data = share(user, keys)
+        result.addUserDictionary(
+            if (data == null) BinaryDictionary.loadUser(user) else BinaryDictionary.loadUser(data))
+      }
+    } catch (e: Exception) {
+      release(keys)
+      throw e
+    }
+    return View(result.withFallback(config), keys)
+  }
+
+  /** Drop references of [view] to shared data */
+  fun release(view: View) {
+    release(view.keys)
+  }
+
+  private fun release(keys: List<Key>) {
+    val dropped = ArrayList<Entry>()
+    synchronized(this) {
+      for (key in keys) {
+        val entry = buffers[key] ?: continue
+        entry.refs -= 1
+        if (entry.refs == 0) {
+          buffers.remove(key)
+          stamps.values.removeIf { it == key }
+          dropped.add(entry)
+          logger.debug("released dictionary data {}", key)
+        }
+      }
+    }
+    dropped.forEach { delete(it.file) }
+  }
+
+  /**
+   * Shared data of [resource], or `null` if it is not stored in a file or a classpath resource.
+   *
+   * Key of the data is added to [keys].
+   */
+  private fun share(resource: Config.Resource<*>, keys: MutableList<Key>): ByteBuffer? {
+    val stamp = stamp(resource)
+    if (stamp != null) {
+      val known = synchronized(this) { stamps[stamp]?.let { acquire(it, keys) } }
+      if (known != null) {
+        return known.duplicate().order(known.order())
+      }
+    }
+    val file =
+        if (resource is Config.Resource.Classpath && !resource.toString().startsWith("file:")) {
+          extract(resource)
+        } else {
+          null
+        }
+    val data =
+        try {
+          if (file != null) MMap.map(file) else resource.asByteBuffer()
+        } catch (e: UnsupportedOperationException) {
+          return null
+        } catch (e: Exception) {
+          delete(file)
+          throw e
+        }
+    val key = Key(location(resource), data.remaining(), checksum(data))
+    var added = false
+    val shared =
+        synchronized(this) {
+          if (stamp != null) {
+            stamps[stamp] = key
+            remember(stamp, key.checksum)
+          }
+          buffers.getOrPut(key) {
+            logger.debug("loaded dictionary data {}", key)
+            added = true
+            Entry(data, file)
+          }
+          acquire(key, keys)!!
+        }
+    if (!added) {
+      // loaded concurrently by another view
+      delete(file)
+    }
+    // duplicates are big-endian regardless of the original
+    return shared.duplicate().order(shared.order())
+  }
+
+  /**
+   * CRC32 of contents of [resource], or `null` if it is not stored in a file or a classpath
+   * resource.
+   *
+   * Checksums are remembered by the stamp of the file, so an unchanged file is not read again,
+   * whether it was shared or only checksummed before. Files are mapped and resources in jars are
+   * streamed, so contents are not read into heap.
+   */
+  fun checksum(resource: Config.Resource<*>): Long? {
+    val stamp = stamp(resource)
+    if (stamp != null) {
+      synchronized(this) { checksums[stamp] }
+          ?.let {
+            return it
+          }
+    }
+    val value =
+        try {
+          computeChecksum(resource)
+        } catch (e: UnsupportedOperationException) {
+          return null
+        }
+    if (stamp != null) {
+      synchronized(this) { remember(stamp, value) }
+    }
+    return value
+  }
+
+  private fun computeChecksum(resource: Config.Resource<*>): Long {
+    val name = resource.toString()
+    if (resource is Config.Resource.Classpath && !name.startsWith("file:")) {
+      hashed.incrementAndGet()
+      val stream = CheckedInputStream(resource.asInputStream(), CRC32())
+      stream.use {
+        val chunk = ByteArray(64 * 1024)
+        while (it.read(chunk) >= 0) {
+          // read through
+        }
+      }
+      return stream.checksum.value
+    }
+    val file = fileOf(resource) ?: return checksum(resource.asByteBuffer())
+    val data = MMap.map(file)
+    try {
+      return checksum(data)
+    } finally {
+      MMap.unmap(data)
+    }
+  }
+
+  /** Remember [checksum] of the file of [stamp], replacing older stamps, must hold the lock */
+  private fun remember(stamp: Stamp, checksum: Long) {
+    checksums.keys.removeIf { it.location == stamp.location }
+    checksums[stamp] = checksum
+  }
+
+  /** Reference the shared data of [key] if it is present, must hold the lock */
+  private fun acquire(key: Key, keys: MutableList<Key>): ByteBuffer? {
+    val entry = buffers[key] ?: return null
+    entry.refs += 1
+    keys.add(key)
+    return entry.buffer
+  }
+
+  /** Stamp of the file of [resource], or `null` if it is not a file */
+  private fun stamp(resource: Config.Resource<*>): Stamp? {
+    val file = fileOf(resource) ?: return null
+    return try {
+      val attributes = Files.readAttributes(file, BasicFileAttributes::class.java)
+      Stamp(location(resource), attributes.size(), attributes.lastModifiedTime().toMillis())
+    } catch (e: Exception) {
+      null
+    }
+  }
+
+  /** File of [resource], or the jar which contains it */
+  private fun fileOf(resource: Config.Resource<*>): Path? {
+    val name = resource.toString()
+    return when {
+      resource is Config.Resource.Filesystem -> Paths.get(name)
+      resource !is Config.Resource.Classpath -> null
+      name.startsWith("file:") -> Paths.get(URI(name))
+      name.startsWith("jar:") -> {
+        val connection = URL(name).openConnection() as? JarURLConnection ?: return null
+        val jar = connection.jarFileURL
+        if (jar.protocol == "file") Paths.get(jar.toURI()) else null
+      }
+      else -> null
+    }
+  }
+
+  /**
+   * Copy a classpath resource which is not a plain file, e.g. packed in a jar, to a file in
+   * [directory]. The file is deleted when its data is dropped.
+   */
+  private fun extract(resource: Config.Resource<*>): Path {
+    val file = Files.createTempFile(directory, "dictionary", ".dic")
+    try {
+      resource.asInputStream().use { Files.copy(it, file, StandardCopyOption.REPLACE_EXISTING) }
+    } catch (e: Exception) {
+      delete(file)
+      throw e
+    }
+    logger.debug("extracted {} to {}", resource, file)
+    return file
+  }
+
+  private fun delete(file: Path?) {
+    if (file == null) {
+      return
+    }
+    try {
+      Files.deleteIfExists(file)
+    } catch (e: IOException) {
+      // mapped files can not be deleted on some platforms
+      file.toFile().deleteOnExit()
+    }
+  }
+
+  /** Data of [view], in the order of its dictionaries */
+  internal fun dataOf(view: View): List<ByteBuffer> {
+    return synchronized(this) { view.keys.mapNotNull { buffers[it]?.buffer } }
+  }
+
+  private fun location(resource: Config.Resource<*>): String {
+    val name = resource.toString()
+    if (resource !is Config.Resource.Filesystem) {
+      return name
+    }
+    return try {
+      Paths.get(name).toRealPath().toString()
+    } catch (e: Exception) {
+      name
+    }
+  }
+
+  private fun checksum(data: ByteBuffer): Long {
+    hashed.incrementAndGet()
+    val crc = CRC32()
+    crc.update(data.duplicate())
+    return crc.value
+  }
+
+  companion object {
+    private val logger = LogManager.getLogger(DictionaryData::class.java)
+  }
+}
@@ -19,36 +19,115 @@ package com.worksap.nlp.elasticsearch.sudachi.plugin
 import com.worksap.nlp.lucene.sudachi.ja.CurrentDictionary
 import com.worksap.nlp.lucene.sudachi.ja.CurrentTokenizer
 import com.worksap.nlp.lucene.sudachi.ja.ReloadAware
+import com.worksap.nlp.search.aliases.Setting
+import com.worksap.nlp.search.aliases.Settings
+import com.worksap.nlp.search.aliases.nodeIntSetting
 import com.worksap.nlp.sudachi.Config
 import com.worksap.nlp.sudachi.Dictionary
 import com.worksap.nlp.sudachi.DictionaryFactory
 import com.worksap.nlp.sudachi.PathAnchor
 import com.worksap.nlp.sudachi.Tokenizer
-import java.lang.ref.SoftReference
+import java.io.Closeable
+import java.lang.ref.Cleaner
+import java.util.concurrent.CompletableFuture
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 import java.util.function.Function
 import org.apache.logging.log4j.LogManager
 
-/** Lightweight cache with strong-referenced entries and unbounded size */
-class UnboundedCache<K : Any, V>(private val factory: Function<K, V>) {
-  private val cache = ConcurrentHashMap<K, V>()
+/**
+ * Dictionary of a configuration which can be replaced by a newer version, see [reload].
+ *
+ * If [data] is given, dictionaries are built over binary data shared with other configurations.
+ * Each version keeps a pool of idle tokenizers within [poolLimits].
+ */
+class ReloadableDictionary
+@JvmOverloads
+constructor(
+    private val config: Config,
+    private val data: DictionaryData? = null,
+    private val poolLimits: TokenizerPool.Limits = TokenizerPool.Limits.DEFAULT,
+) : CurrentDictionary {
+  internal data class Holder(
+      val version: Long,
+      val dictionary: Dictionary,
+      val tokenizers: TokenizerPool,
+      val view: DictionaryData.View? = null
+  )
 
-  fun get(key: K): V {
-    return cache.computeIfAbsent(key, factory)
+  @Volatile private var current = create(0L)
+
+  private fun create(version: Long): Holder {
+    val data = data
+    if (data == null) {
+      val dictionary = DictionaryFactory().create(config)
+      return Holder(version, dictionary, TokenizerPool(dictionary, poolLimits))
+    }
+    val view = data.view(config)
+    try {
+      val dictionary = DictionaryFactory().create(view.config)
+      return Holder(version, dictionary, TokenizerPool(dictionary, poolLimits), view)
+    } catch (e: Exception) {
+      data.release(view)
+      throw e
+    }
   }
-}
 
-// Actual reloading logic will be implemented later
-class ReloadableDictionary(private val config: Config) : CurrentDictionary {
-  internal data class Holder(val version: Long, val dictionary: Dictionary)
+  /**
+   * Load the dictionary again from files of its configuration and make it current.
+   *
+   * The old dictionary keeps serving analysis while the new one is built. [beforeSwap] is called
+   * with the new dictionary before it becomes current. Tokenizers and other [ReloadAware] objects
+   * switch to the new dictionary on their next use, analyses which are in progress finish with the
+   * old one.
+   *
+   * @return the new dictionary
+   */
+  @Synchronized
+  fun reload(beforeSwap: (Dictionary) -> Unit = {}): Dictionary {
+    val old = current
+    val next = create(old.version + 1)
+    try {
+      beforeSwap(next.dictionary)
+    } catch (e: Exception) {
+      next.view?.let { data?.release(it) }
+      throw e
+    }
+    current = next
+    old.tokenizers.close()
+    old.view?.let { data?.release(it) }
+    return next.dictionary
+  }
 
-  @Volatile private var current = create(0L)
+  /**
+   * Drop references to shared dictionary data.
+   *
+   * Dictionary stays usable, but the data is no longer shared with configurations which are loaded
+   * later.
+   */
+  internal fun release() {
+    current.tokenizers.close()
+    current.view?.let { data?.release(it) }
+  }
 
-  private fun create(version: Long): Holder {
-    val dic = DictionaryFactory().create(config)
-    return Holder(version, dic)
+  /** Drop tokenizers which were idle for too long */
+  internal fun trimTokenizers() {
+    current.tokenizers.trim()
   }
 
+  /** Counters of the tokenizer pool of the current version */
+  fun tokenizerStats(): TokenizerPool.Stats = current.tokenizers.stats()
+
   val version: Long
     get() = current.version
 
@@ -63,7 +142,7 @@ class ReloadableDictionary(private val config: Config) : CurrentDictionary {
   override fun maybeReload(newDictionary: CurrentDictionary?): Dictionary {
     if (newDictionary is ReloadableDictionary) {
       val holder = newDictionary.current
-      val newHolder = Holder(holder.version + 1, holder.dictionary)
+      val newHolder = holder.copy(version = holder.version + 1)
       current = newHolder
       newDictionary.current = newHolder
     }
@@ -113,26 +192,51 @@ class ReloadAwareImpl<T>(private val factory: Function<Dictionary, T>) : ReloadA
 }
 
 /**
+ * Tokenizer of the current version of a dictionary.
+ *
+ * A Sudachi tokenizer is taken from the pool of the dictionary version on the first [get] and kept
+ * until it is [released][release]. Instances are used by a single thread at a time.
  */
 class ReloadableTokenizer(private val dictionary: ReloadableDictionary) : CurrentTokenizer {
-  private var version = 0L
-  private var tokenizer = run {
-    val tok = dictionary.get().create()
-    version = dictionary.version
-    SoftReference(tok)
-  }
+  private var pool: TokenizerPool? = null
+  private var pooled: TokenizerPool.Pooled? = null
 
   /** Instances returned from this function should not be cached */
   override fun get(): Tokenizer {
-    val instance = tokenizer.get()
-    val dicVersion = dictionary.version
-    return if (version != dicVersion || instance == null) {
-      val tok = dictionary.get().create()
-      tokenizer = SoftReference(tok)
-      tok
-    } else {
-      instance
+    val current = dictionary.holder().tokenizers
+    val instance = pooled
+    if (instance != null && pool === current) {
+      return instance.tokenizer
     }
+    release()
+    val next = current.acquire()
+    pool = current
+    pooled = next
+    return next.tokenizer
+  }
+
+  /**
+   * Dictionary of the tokenizer which was returned by the last [get]. It differs from the current
+   * dictionary if it was reloaded since then, so results of the tokenizer must be attributed to it.
+   */
+  fun tokenizerDictionary(): Dictionary {
+    return checkNotNull(pool) { "tokenizer was not acquired" }.dictionary
+  }
+
+  /**
+   * Record that the tokenizer analyzed a text of [length] characters at once. Tokenizers which
+   * analyzed too long texts are not reused after they are [released][release].
+   */
+  fun analyzed(length: Int) {
+    pooled?.analyzed(length)
+  }
+
+  /** Return the tokenizer to the pool, the next [get] takes one from the pool again */
+  fun release() {
+    val instance = pooled ?: return
+    pool?.release(instance)
+    pooled = null
+    pool = null
   }
 
   override fun dictionary(): ReloadableDictionary = dictionary
@@ -143,7 +247,29 @@ class ReloadableTokenizer(private val dictionary: ReloadableDictionary) : Curren
   }
 }
 
-class DictionaryService(additionalClassloaders: List<ClassLoader> = emptyList()) {
+/**
+ * Dictionaries of the node by configuration.
+ *
+ * Dictionaries are [acquired][acquire] by factories which use them. A dictionary starts loading in
+ * the background when it is acquired for the first time, up to [loadThreads] dictionaries are
+ * loaded concurrently. Analysis waits for the dictionary at most [loadTimeoutSeconds]. Idle
+ * tokenizers of each dictionary are pooled within [poolLimits].
+ *
+ * When no factory uses a dictionary anymore, it is dropped after [releaseDelaySeconds], unless it
+ * is acquired again in the meantime. This keeps dictionaries loaded while indices are reopened or
+ * recreated, but releases memory of dictionaries whose indices were deleted.
+ */
+class DictionaryService
+@JvmOverloads
+constructor(
+    additionalClassloaders: List<ClassLoader> = emptyList(),
+    private val releaseDelaySeconds: Int = DEFAULT_RELEASE_DELAY,
+    loadThreads: Int = DEFAULT_LOAD_THREADS,
+    private val loadTimeoutSeconds: Int = DEFAULT_LOAD_TIMEOUT,
+    private val poolLimits: TokenizerPool.Limits = TokenizerPool.Limits.DEFAULT,
+    /** Dictionary files, shared between configurations */
+    val data: DictionaryData = DictionaryData(),
+) : Closeable {
   val anchor: PathAnchor = run {
     val anchor =
         additionalClassloaders
@@ -154,16 +280,324 @@ class DictionaryService(additionalClassloaders: List<ClassLoader> = emptyList())
 
   companion object {
     private val logger = LogManager.getLogger(DictionaryService::class.java)
+
+    private const val DEFAULT_RELEASE_DELAY = 300
+
+    private const val DEFAULT_LOAD_TIMEOUT = 60
+
+    private val DEFAULT_LOAD_THREADS = Runtime.getRuntime().availableProcessors().coerceIn(1, 4)
+
+    private val cleaner = Cleaner.create()
+
+    /** Seconds to keep a dictionary loaded after the last index which used it was closed */
+    @JvmField
+    val RELEASE_DELAY =
+        nodeIntSetting("sudachi.dictionary.release_delay_seconds", DEFAULT_RELEASE_DELAY, 0)
+
+    /** Number of dictionaries which are loaded concurrently */
+    @JvmField
+    val LOAD_THREADS = nodeIntSetting("sudachi.dictionary.load_threads", DEFAULT_LOAD_THREADS, 1)
+
+    /** Seconds analysis waits for a dictionary which is still loading */
+    @JvmField
+    val LOAD_TIMEOUT =
+        nodeIntSetting("sudachi.dictionary.load_timeout_seconds", DEFAULT_LOAD_TIMEOUT, 1)
+
+    /** Number of idle tokenizers kept for each dictionary */
+    @JvmField
+    val POOL_MAX_IDLE =
+        nodeIntSetting("sudachi.tokenizer_pool.max_idle", TokenizerPool.Limits.DEFAULT.maxIdle, 0)
+
+    /** Seconds after which an idle tokenizer is dropped */
+    @JvmField
+    val POOL_IDLE_TIMEOUT =
+        nodeIntSetting(
+            "sudachi.tokenizer_pool.idle_timeout_seconds",
+            TokenizerPool.Limits.DEFAULT.idleTimeoutSeconds,
+            1)
+
+    /** Tokenizers which analyzed longer texts at once are dropped instead of being reused */
+    @JvmField
+    val POOL_MAX_INPUT_LENGTH =
+        nodeIntSetting(
+            "sudachi.tokenizer_pool.max_input_length",
+            TokenizerPool.Limits.DEFAULT.maxInputLength,
+            1)
+
+    @JvmStatic
+    fun settings(): List<Setting<*>> =
+        listOf(
+            RELEASE_DELAY,
+            LOAD_THREADS,
+            LOAD_TIMEOUT,
+            POOL_MAX_IDLE,
+            POOL_IDLE_TIMEOUT,
+            POOL_MAX_INPUT_LENGTH)
+
+    @JvmStatic
+    @JvmOverloads
+    fun fromSettings(
+        additionalClassloaders: List<ClassLoader>,
+        settings: Settings,
+        data: DictionaryData = DictionaryData()
+    ) =
+        DictionaryService(
+            additionalClassloaders,
+            RELEASE_DELAY.get(settings),
+            LOAD_THREADS.get(settings),
+            LOAD_TIMEOUT.get(settings),
+            TokenizerPool.Limits(
+                POOL_MAX_IDLE.get(settings),
+                POOL_IDLE_TIMEOUT.get(settings),
+                POOL_MAX_INPUT_LENGTH.get(settings)),
+            data,
+        )
+  }
+
+  internal inner class Entry(val config: Config) {
+    @Volatile var loadTimeMillis = -1L
+    @Volatile var loading = startLoading()
+    @Volatile var refs = 0
+    var removal: ScheduledFuture<*>? = null
+
+    fun startLoading(): CompletableFuture<ReloadableDictionary> {
+      val start = System.nanoTime()
+      return CompletableFuture.supplyAsync({ makeDictionary(config) }, loader).whenComplete { _, e
+        ->
+        val elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+        if (e == null) {
+          loadTimeMillis = elapsed
+          logger.info("loaded dictionary in {} ms with config={}", elapsed, config)
+        } else {
+          loadFailures.incrementAndGet()
+          logger.warn("failed to load dictionary with config={}", config, e)
+        }
+      }
+    }
+
+    /** Loaded dictionary, or null if it is still loading or failed to load */
+    fun loaded(): ReloadableDictionary? {
+      val loading = loading
+      return if (loading.isDone && !loading.isCompletedExceptionally) loading.join() else null
+    }
+
+    fun await(): ReloadableDictionary {
+      try {
+        return loading.get(loadTimeoutSeconds.toLong(), TimeUnit.SECONDS)
+      } catch (e: TimeoutException) {
+        throw IllegalStateException(
+            "dictionary was not loaded in $loadTimeoutSeconds seconds, config=$config")
+      } catch (e: ExecutionException) {
+        throw IllegalStateException("failed to load dictionary with config=$config", e.cause)
+      } catch (e: InterruptedException) {
+        Thread.currentThread().interrupt()
+        throw IllegalStateException("interrupted while waiting for dictionary", e)
+      }
+    }
+  }
+
+  private val entries = ConcurrentHashMap<Config, Entry>()
+
+  private val listeners = CopyOnWriteArrayList<DictionaryReloadListener>()
+
+  private val loadFailures = AtomicLong()
+
+  private val loaderCounter = AtomicInteger()
+
+  private val loader =
+      ThreadPoolExecutor(loadThreads, loadThreads, 30, TimeUnit.SECONDS, LinkedBlockingQueue()) { r
+            ->
+            Thread(r, "sudachi-dictionary-load-${loaderCounter.incrementAndGet()}").also {
+              it.isDaemon = true
+            }
+          }
+          .also { it.allowCoreThreadTimeOut(true) }
+
+  /** Executes reloads one at a time */
+  private val reloader =
+      ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, LinkedBlockingQueue()) { r ->
+        Thread(r, "sudachi-dictionary-reload").also { it.isDaemon = true }
+      }
+
+  private val scheduler =
+      ScheduledThreadPoolExecutor(1) { r ->
+            Thread(r, "sudachi-dictionary-release").also { it.isDaemon = true }
+          }
+          .also { it.removeOnCancelPolicy = true }
+
+  init {
+    val period = (poolLimits.idleTimeoutSeconds / 2L).coerceAtLeast(1L)
+    scheduler.scheduleWithFixedDelay(
+        { entries.values.forEach { it.loaded()?.trimTokenizers() } },
+        period,
+        period,
+        TimeUnit.SECONDS)
+  }
+
+  /**
+   * Reference to the dictionary of [config], which starts loading it if needed.
+   *
+   * It is released when the object it is [tied][Lease.tieTo] to becomes unreachable.
+   */
+  fun acquire(config: Config): Lease {
+    val entry =
+        entries.compute(config) { _, existing ->
+          val entry = existing ?: Entry(config)
+          // a new entry may fail before this check, its failure must be reported once
+          if (existing != null && entry.loading.isCompletedExceptionally) {
+            entry.loading = entry.startLoading()
+          }
+          entry.refs += 1
+          entry.removal?.cancel(false)
+          entry.removal = null
+          entry
+        }
+    return Lease(entry!!)
   }
 
-  private val dictionaryCache = UnboundedCache(this::makeDictionary)
+  inner class Lease internal constructor(private val entry: Entry) {
+    private val released = AtomicBoolean()
+
+    /**
+     * The dictionary, waits until it is loaded
+     *
+     * @throws IllegalStateException if the dictionary failed to load or was not loaded in time
+     */
+    val dictionary: ReloadableDictionary
+      get() = entry.await()
 
-  fun forConfig(config: Config): ReloadableDictionary {
-    return dictionaryCache.get(config)
+    /** Call [action] on a background thread once the dictionary is loaded */
+    fun whenLoaded(action: (ReloadableDictionary) -> Unit) {
+      entry.loading.thenAccept(action)
+    }
+
+    /** Release the dictionary when [owner] becomes unreachable */
+    fun tieTo(owner: Any): Lease {
+      val entry = entry
+      val released = released
+      cleaner.register(owner) {
+        if (released.compareAndSet(false, true)) {
+          release(entry)
+        }
+      }
+      return this
+    }
+  }
+
+  private fun release(entry: Entry) {
+    entries.computeIfPresent(entry.config) { _, current ->
+      if (current !== entry) {
+        return@computeIfPresent current
+      }
+      entry.refs -= 1
+      if (entry.refs > 0) {
+        return@computeIfPresent entry
+      }
+      if (releaseDelaySeconds == 0) {
+        remove(entry)
+        return@computeIfPresent null
+      }
+      entry.removal =
+          scheduler.schedule({ expire(entry) }, releaseDelaySeconds.toLong(), TimeUnit.SECONDS)
+      entry
+    }
+  }
+
+  private fun expire(entry: Entry) {
+    entries.computeIfPresent(entry.config) { _, current ->
+      if (current === entry && entry.refs == 0) {
+        remove(entry)
+        null
+      } else {
+        current
+      }
+    }
+  }
+
+  private fun remove(entry: Entry) {
+    logger.debug("releasing unused dictionary with config={}", entry.config)
+    entry.loading.thenAccept { it.release() }
+  }
+
+  fun addReloadListener(listener: DictionaryReloadListener) {
+    listeners.add(listener)
+  }
+
+  /**
+   * Reload all loaded dictionaries from their files in the background.
+   *
+   * A dictionary which fails to load keeps its current version.
+   *
+   * @return report with versions of reloaded dictionaries and errors of failed ones
+   */
+  fun reload(): CompletableFuture<Map<String, Any>> {
+    return CompletableFuture.supplyAsync({ reloadAll() }, reloader)
+  }
+
+  private fun reloadAll(): Map<String, Any> {
+    val reloaded = ArrayList<Map<String, Any>>()
+    val failed = ArrayList<Map<String, Any>>()
+    for (entry in entries.values) {
+      val config = entry.config
+      // dictionaries which are still loading read current files anyway
+      val dictionary = entry.loaded() ?: continue
+      try {
+        dictionary.reload { dic -> listeners.forEach { it.beforeReload(config, dic) } }
+        listeners.forEach { it.afterReload(config) }
+        reloaded.add(describe(config) + ("version" to dictionary.version))
+        logger.info("reloaded dictionary with config={}", config)
+      } catch (e: Exception) {
+        logger.warn("failed to reload dictionary with config={}", config, e)
+        failed.add(describe(config) + ("error" to e.toString()))
+      }
+    }
+    return mapOf("reloaded" to reloaded, "failed" to failed)
+  }
+
+  private fun describe(config: Config): Map<String, Any> {
+    return mapOf(
+        "system_dictionary" to config.systemDictionary.toString(),
+        "user_dictionaries" to config.userDictionaries.map { it.toString() },
+    )
   }
 
   private fun makeDictionary(config: Config): ReloadableDictionary {
     logger.debug("loading dictionary with config={}", config)
-    return ReloadableDictionary(config)
+    return ReloadableDictionary(config, data, poolLimits)
+  }
+
+  /** Numbers of loaded and used dictionaries, their load times and shared dictionary files */
+  fun stats(): Map<String, Any> {
+    val loadTimes = entries.values.map { it.loadTimeMillis }.filter { it >= 0 }
+    return mapOf(
+        "count" to entries.size,
+        "in_use" to entries.values.count { it.refs > 0 },
+        "loading" to entries.values.count { !it.loading.isDone },
+        "load_failures" to loadFailures.get(),
+        "load_time_in_millis" to loadTimes.sum(),
+        "max_load_time_in_millis" to (loadTimes.maxOrNull() ?: 0L),
+        "tokenizers" to
+            entries.values
+                .mapNotNull { it.loaded()?.tokenizerStats() }
+                .fold(TokenizerPool.Stats.EMPTY, TokenizerPool.Stats::plus)
+                .toMap(),
+        "files" to data.size,
+        "size_in_bytes" to data.sizeInBytes,
+    )
   }
+
+  override fun close() {
+    loader.shutdownNow()
+    reloader.shutdownNow()
+    scheduler.shutdownNow()
+  }
+}
+
+/** Receives notifications about reloads of [DictionaryService] */
+interface DictionaryReloadListener {
+  /** Called before [dictionary] replaces the current dictionary of [config] */
+  fun beforeReload(config: Config, dictionary: Dictionary) {}
+
+  /** Called after the dictionary of [config] was replaced */
+  fun afterReload(config: Config) {}
 }
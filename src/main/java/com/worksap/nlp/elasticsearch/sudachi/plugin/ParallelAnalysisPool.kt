@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import com.worksap.nlp.lucene.sudachi.ja.util.Instrumentation
+import com.worksap.nlp.sudachi.Dictionary
+import com.worksap.nlp.sudachi.MorphemeList
+import com.worksap.nlp.sudachi.Tokenizer
+import com.worksap.nlp.sudachi.Tokenizer.SplitMode
+import java.io.Closeable
+import java.util.WeakHashMap
+import java.util.concurrent.Callable
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinTask
+import java.util.concurrent.ForkJoinWorkerThread
+
+/**
+ * Fork-join pool of the plugin which analyzes chunks of large inputs in parallel.
+ *
+ * Sudachi tokenizers are not thread-safe, so each worker creates its own tokenizer for each
+ * dictionary it analyzes with. Tokenizers of reloaded dictionaries are dropped with the dictionary.
+ */
+class ParallelAnalysisPool(threads: Int) : Closeable {
+  private val pool = ForkJoinPool(threads, ::Worker, null, false)
+
+  /** Maximum number of chunks analyzed at the same time */
+  val parallelism: Int
+    get() = pool.parallelism
+
+  /** Tasks of this pool which analyze with tokenizers of [dictionary] */
+  fun session(dictionary: Dictionary): Session = Session(dictionary)
+
+  override fun close() {
+    pool.shutdownNow()
+  }
+
+  inner class Session internal constructor(private val dictionary: Dictionary) {
+    val parallelism: Int
+      get() = pool.parallelism
+
+    /** Analyze [text] split into sentences on a worker of the pool */
+    fun submit(mode: SplitMode, text: String): ForkJoinTask<Iterable<MorphemeList>> {
+      return pool.submit(
+          Callable {
+            val tokenizer = (Thread.currentThread() as Worker).tokenizer(dictionary)
+            val start = Instrumentation.start()
+            val result = tokenizer.tokenizeSentences(mode, text)
+            Instrumentation.record(Instrumentation.Probe.ANALYZE, start)
+            result
+          })
+    }
+  }
+
+  private class Worker(pool: ForkJoinPool) : ForkJoinWorkerThread(pool) {
+    private val tokenizers = WeakHashMap<Dictionary, Tokenizer>()
+
+    init {
+      name = "sudachi-analysis-$poolIndex"
+    }
+
+    fun tokenizer(dictionary: Dictionary): Tokenizer =
+        tokenizers.getOrPut(dictionary) { dictionary.create() }
+  }
+}
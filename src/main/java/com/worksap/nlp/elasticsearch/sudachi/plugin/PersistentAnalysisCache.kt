@@ -0,0 +1,456 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import com.worksap.nlp.lucene.sudachi.ja.CompactMorphemeList
+import com.worksap.nlp.sudachi.Config
+import com.worksap.nlp.sudachi.Dictionary
+import java.io.Closeable
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.zip.Adler32
+import java.util.zip.CRC32
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+import org.apache.logging.log4j.LogManager
+
+/**
+ * Analysis results of a single dictionary configuration, stored in an append-only memory-mapped
+ * file which survives node restarts.
+ *
+ * The file starts with a header which contains the [fingerprint] of dictionary contents. If it does
+ * not match, e.g. because the dictionary was rebuilt, the file is discarded. Each record contains a
+ * 64-bit hash of the input, the input itself and the packed [CompactMorphemeList]. The hashes and
+ * offsets of records are kept in an index on the heap, which is rebuilt by scanning the file when
+ * it is opened.
+ *
+ * When the file reaches [capacity], it is compacted: records which were read since the previous
+ * compaction are kept, up to half of the capacity, and the others are dropped. When the dictionary
+ * is reloaded, the cache is [refreshed][refresh] and accepts only results of the new dictionary.
+ */
+class PersistentAnalysisCache(
+    file: Path,
+    private var fingerprint: Long,
+    private val capacity: Int
+) : Closeable {
+  private val channel =
+      FileChannel.open(
+          file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+  private val buffer: MappedByteBuffer =
+      channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity.toLong())
+  private val lock = ReentrantReadWriteLock()
+  private var index = OffsetIndex()
+  private var end = HEADER_SIZE
+
+  /** Dictionary which results belong to, `null` for the one which was loaded with the file */
+  private var owner: Dictionary? = null
+
+  private val hits = LongAdder()
+  private val misses = LongAdder()
+  private val writes = LongAdder()
+  private val compactions = LongAdder()
+
+  init {
+    require(capacity > HEADER_SIZE) { "capacity is too small: $capacity" }
+    if (!readHeader()) {
+      logger.info("discarding persistent analysis cache {}", file)
+      reset()
+    } else {
+      scan()
+      logger.debug("opened persistent analysis cache {} with {} entries", file, index.size)
+    }
+  }
+
+  /** Cached analysis of [text], or `null` if it is not present */
+  fun get(text: String, dictionary: Dictionary): CompactMorphemeList? {
+    val key = hash(text)
+    val result =
+        lock.read {
+          val offset = if (accepts(dictionary)) index.get(key, mark = true) else -1
+          if (offset < 0) null else decode(offset, text, dictionary)
+        }
+    if (result == null) {
+      misses.increment()
+    } else {
+      hits.increment()
+    }
+    return result
+  }
+
+  /** Store analysis result, unless there is already a result for the same input */
+  fun put(list: CompactMorphemeList) {
+    val key = hash(list.text)
+    val record = encode(key, list)
+    if (record.remaining() > capacity - HEADER_SIZE) {
+      return
+    }
+    lock.write {
+      if (!accepts(list.dictionary) || index.get(key) >= 0) {
+        return
+      }
+      if (end + record.remaining() > capacity) {
+        compact()
+      }
+      if (end + record.remaining() > capacity) {
+        reset()
+      }
+      val offset = end
+      buffer.duplicate().position(offset).put(record)
+      end += record.limit()
+      buffer.putInt(END_OFFSET, end)
+      index.put(key, offset)
+    }
+    writes.increment()
+  }
+
+  /**
+   * Accept only results of [dictionary] from now on, and clear the file if contents of dictionaries
+   * changed to [fingerprint].
+   */
+  fun refresh(fingerprint: Long, dictionary: Dictionary) {
+    lock.write {
+      owner = dictionary
+      if (fingerprint != this.fingerprint) {
+        this.fingerprint = fingerprint
+        reset()
+      }
+    }
+  }
+
+  private fun accepts(dictionary: Dictionary): Boolean {
+    val current = owner
+    return current == null || current === dictionary
+  }
+
+  /** Statistics of the cache, in the format of `GET _sudachi/stats` */
+  fun stats(): Map<String, Long> {
+    val (count, size) = lock.read { index.size.toLong() to end.toLong() }
+    return mapOf(
+        "hits" to hits.sum(),
+        "misses" to misses.sum(),
+        "writes" to writes.sum(),
+        "compactions" to compactions.sum(),
+        "count" to count,
+        "size_in_bytes" to size,
+    )
+  }
+
+  override fun close() {
+    lock.write {
+      buffer.force()
+      channel.close()
+    }
+  }
+
+  private fun readHeader(): Boolean {
+    return buffer.getInt(0) == MAGIC &&
+        buffer.getInt(VERSION_OFFSET) == VERSION &&
+        buffer.getLong(FINGERPRINT_OFFSET) == fingerprint &&
+        buffer.getInt(END_OFFSET) in HEADER_SIZE..capacity
+  }
+
+  private fun reset() {
+    buffer.putInt(0, MAGIC)
+    buffer.putInt(VERSION_OFFSET, VERSION)
+    buffer.putLong(FINGERPRINT_OFFSET, fingerprint)
+    buffer.putInt(END_OFFSET, HEADER_SIZE)
+    end = HEADER_SIZE
+    index = OffsetIndex()
+  }
+
+  /**
+   * Move records which were read since the previous compaction to the start of the file, up to half
+   * of the capacity, and drop the others.
+   */
+  private fun compact() {
+    val used = index.usedOffsets()
+    used.sort()
+    // records are moved over older ones, so the file is empty until they are in place
+    buffer.putInt(END_OFFSET, HEADER_SIZE)
+    val kept = OffsetIndex()
+    val limit = HEADER_SIZE + (capacity - HEADER_SIZE) / 2
+    var position = HEADER_SIZE
+    for (offset in used) {
+      val length = buffer.getInt(offset)
+      if (position + length > limit) {
+        break
+      }
+      if (offset != position) {
+        val record = ByteArray(length)
+        buffer.duplicate().position(offset).get(record)
+        buffer.duplicate().position(position).put(record)
+      }
+      kept.put(buffer.getLong(position + 8), position)
+      position += length
+    }
+    end = position
+    buffer.putInt(END_OFFSET, end)
+    index = kept
+    compactions.increment()
+  }
+
+  /** Index records of the file, stopping at the first damaged one */
+  private fun scan() {
+    val limit = buffer.getInt(END_OFFSET)
+    var offset = HEADER_SIZE
+    while (offset + RECORD_HEADER_SIZE <= limit) {
+      val length = buffer.getInt(offset)
+      if (length < RECORD_HEADER_SIZE ||
+          offset + length > limit ||
+          checksum(offset) != buffer.getInt(offset + 4)) {
+        break
+      }
+      index.put(buffer.getLong(offset + 8), offset)
+      offset += length
+    }
+    end = offset
+    buffer.putInt(END_OFFSET, end)
+  }
+
+  private fun checksum(offset: Int): Int {
+    val length = buffer.getInt(offset)
+    val crc = CRC32()
+    crc.update(buffer.duplicate().position(offset + 8).limit(offset + length))
+    return crc.value.toInt()
+  }
+
+  private fun decode(offset: Int, text: String, dictionary: Dictionary): CompactMorphemeList? {
+    val data = buffer.duplicate().position(offset + RECORD_HEADER_SIZE)
+    if (readString(data) != text) {
+      return null
+    }
+    val units = readInts(data)
+    val splits = readInts(data)
+    val synthetic =
+        Array(data.getInt()) {
+          CompactMorphemeList.SyntheticWord(
+              readString(data), readString(data), readString(data), readInts(data))
+        }
+    return CompactMorphemeList.restore(text, units, splits, synthetic, dictionary)
+  }
+
+  private fun encode(key: Long, list: CompactMorphemeList): ByteBuffer {
+    var size = RECORD_HEADER_SIZE + stringSize(list.text)
+    size += 4 + list.units.size * 4 + 4 + list.splits.size * 4 + 4
+    for (s in list.synthetic) {
+      size += stringSize(s.normalizedForm) + stringSize(s.dictionaryForm)
+      size += stringSize(s.readingForm) + 4 + s.synonymGroupIds.size * 4
+    }
+    val data = ByteBuffer.allocate(size)
+    data.putInt(size)
+    data.putInt(0)
+    data.putLong(key)
+    putString(data, list.text)
+    putInts(data, list.units)
+    putInts(data, list.splits)
+    data.putInt(list.synthetic.size)
+    for (s in list.synthetic) {
+      putString(data, s.normalizedForm)
+      putString(data, s.dictionaryForm)
+      putString(data, s.readingForm)
+      putInts(data, s.synonymGroupIds)
+    }
+    val crc = CRC32()
+    crc.update(data.array(), 8, size - 8)
+    data.putInt(4, crc.value.toInt())
+    data.flip()
+    return data
+  }
+
+  /**
+   * Open-addressing hash table from input hashes to record offsets, which also tracks records which
+   * were read since it was created
+   */
+  private class OffsetIndex {
+    private var keys = LongArray(1024)
+    private var offsets = IntArray(1024)
+    // set by concurrent readers, a lost mark only makes a record less likely to be kept
+    private var used = BooleanArray(1024)
+    var size = 0
+      private set
+
+    /** Offset of the record of [key] or -1, which is [marked][mark] as used if requested */
+    fun get(key: Long, mark: Boolean = false): Int {
+      val mask = keys.size - 1
+      var i = mix(key) and mask
+      while (true) {
+        val k = keys[i]
+        if (k == key) {
+          if (mark) {
+            used[i] = true
+          }
+          return offsets[i]
+        }
+        if (k == 0L) {
+          return -1
+        }
+        i = (i + 1) and mask
+      }
+    }
+
+    fun put(key: Long, offset: Int) {
+      if (size * 2 >= keys.size) {
+        grow()
+      }
+      val mask = keys.size - 1
+      var i = mix(key) and mask
+      while (keys[i] != 0L && keys[i] != key) {
+        i = (i + 1) and mask
+      }
+      if (keys[i] == 0L) {
+        size += 1
+      }
+      keys[i] = key
+      offsets[i] = offset
+    }
+
+    /** Offsets of records which were read */
+    fun usedOffsets(): IntArray {
+      return offsets.filterIndexed { i, _ -> used[i] }.toIntArray()
+    }
+
+    private fun grow() {
+      val oldKeys = keys
+      val oldOffsets = offsets
+      val oldUsed = used
+      keys = LongArray(oldKeys.size * 2)
+      offsets = IntArray(oldKeys.size * 2)
+      used = BooleanArray(oldKeys.size * 2)
+      size = 0
+      for (i in oldKeys.indices) {
+        if (oldKeys[i] != 0L) {
+          put(oldKeys[i], oldOffsets[i])
+          if (oldUsed[i]) {
+            get(oldKeys[i], mark = true)
+          }
+        }
+      }
+    }
+
+    private fun mix(key: Long): Int = (key xor (key ushr 32)).toInt()
+  }
+
+  companion object {
+    private val logger = LogManager.getLogger(PersistentAnalysisCache::class.java)
+
+    private const val MAGIC = 0x53444143 // SDAC
+    private const val VERSION = 2
+    private const val VERSION_OFFSET = 4
+    private const val FINGERPRINT_OFFSET = 8
+    private const val END_OFFSET = 16
+    private const val HEADER_SIZE = 24
+
+    /** Record length, checksum and key */
+    private const val RECORD_HEADER_SIZE = 16
+
+    /** 64-bit FNV-1a hash of the input, never 0 */
+    internal fun hash(text: String): Long {
+      var h = -0x340d631b7bdddcdbL
+      for (c in text) {
+        h = (h xor c.code.toLong()) * 0x100000001b3L
+      }
+      return if (h == 0L) 1L else h
+    }
+
+    /**
+     * Name of the cache file for [config], which depends on locations of dictionaries and on
+     * settings which affect the analysis.
+     */
+    internal fun fileName(config: Config): String {
+      return "analysis-cache-%016x.bin".format(hash(describe(config)))
+    }
+
+    private fun describe(config: Config): String {
+      val result = StringBuilder()
+      result.append(config.systemDictionary).append('\n')
+      config.userDictionaries.forEach { result.append(it).append('\n') }
+      result.append(config.characterDefinition).append('\n')
+      config.inputTextPlugins.forEach { result.append(it).append('\n') }
+      config.oovProviderPlugins.forEach { result.append(it).append('\n') }
+      config.pathRewritePlugins.forEach { result.append(it).append('\n') }
+      config.editConnectionCostPlugins.forEach { result.append(it).append('\n') }
+      result.append(config.isAllowEmptyMorpheme)
+      return result.toString()
+    }
+
+    /**
+     * Hash of contents of dictionaries of [config] and settings which affect the analysis.
+     *
+     * Contents are represented by their [checksum], which [DictionaryData] remembers for files it
+     * has already read, so dictionaries are not read again.
+     *
+     * @return `null` if dictionaries are not stored in files or resources, e.g. were created in
+     * memory
+     */
+    internal fun fingerprint(config: Config, checksum: (Config.Resource<*>) -> Long?): Long? {
+      val crc = CRC32()
+      val adler = Adler32()
+      val resources =
+          listOfNotNull(config.systemDictionary, config.characterDefinition) +
+              config.userDictionaries
+      val checksums = ByteBuffer.allocate(resources.size * 8)
+      try {
+        for (resource in resources) {
+          checksums.putLong(checksum(resource) ?: return null)
+        }
+      } catch (e: Exception) {
+        logger.debug("dictionary contents are not accessible for {}", config, e)
+        return null
+      }
+      val description = describe(config).toByteArray()
+      for (data in listOf(checksums.array(), description)) {
+        crc.update(data)
+        adler.update(data)
+      }
+      return (crc.value shl 32) or adler.value
+    }
+
+    private fun stringSize(value: String): Int = 4 + value.length * 2
+
+    private fun putString(data: ByteBuffer, value: String) {
+      data.putInt(value.length)
+      for (c in value) {
+        data.putChar(c)
+      }
+    }
+
+    private fun readString(data: ByteBuffer): String {
+      val chars = CharArray(data.getInt())
+      data.asCharBuffer().get(chars)
+      data.position(data.position() + chars.size * 2)
+      return String(chars)
+    }
+
+    private fun putInts(data: ByteBuffer, values: IntArray) {
+      data.putInt(values.size)
+      data.asIntBuffer().put(values)
+      data.position(data.position() + values.size * 4)
+    }
+
+    private fun readInts(data: ByteBuffer): IntArray {
+      val values = IntArray(data.getInt())
+      data.asIntBuffer().get(values)
+      data.position(data.position() + values.size * 4)
+      return values
+    }
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import com.worksap.nlp.lucene.sudachi.ja.CompactMorphemeList
+import com.worksap.nlp.sudachi.Dictionary
+import java.lang.ref.WeakReference
+
+/**
+ * Analysis results of the last few inputs of each thread.
+ *
+ * Search engines analyze the same string instance once for each sub-field and `copy_to` target of a
+ * document field. Inputs are matched by identity, so a lookup is cheap and does not depend on the
+ * input length, and results are reused even for inputs which are too large for the analysis cache.
+ *
+ * Results are referenced weakly, so they do not keep large inputs in memory after the document is
+ * indexed.
+ */
+internal object RecentInputs {
+  const val SIZE = 4
+
+  private class Slots {
+    val lists = arrayOfNulls<WeakReference<CompactMorphemeList>>(SIZE)
+    var next = 0
+  }
+
+  private val slots = ThreadLocal.withInitial { Slots() }
+
+  /** Result for this [input] string instance which was analyzed with [dictionary] */
+  fun get(input: String, dictionary: Dictionary): CompactMorphemeList? {
+    for (ref in slots.get().lists) {
+      val list = ref?.get() ?: continue
+      if (list.text === input && list.dictionary === dictionary) {
+        return list
+      }
+    }
+    return null
+  }
+
+  fun put(list: CompactMorphemeList) {
+    val s = slots.get()
+    s.lists[s.next] = WeakReference(list)
+    s.next = (s.next + 1) % SIZE
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import com.worksap.nlp.search.aliases.JsonPostRestHandler
+import com.worksap.nlp.search.aliases.RestController
+import java.util.concurrent.CompletionStage
+
+/**
+ * Reloads dictionaries of the local node from their files on `POST _sudachi/reload`, without
+ * closing indices which use them
+ */
+class RestSudachiReloadAction(
+    controller: RestController,
+    private val dictionaries: DictionaryService,
+) : JsonPostRestHandler(controller, listOf("/_sudachi/reload")) {
+  override fun getName(): String = "sudachi_reload_action"
+
+  override fun respond(): CompletionStage<Map<String, Any?>> {
+    return dictionaries.reload().thenApply<Map<String, Any?>> { it }
+  }
+}
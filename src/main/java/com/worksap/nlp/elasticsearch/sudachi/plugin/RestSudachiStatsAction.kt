@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import com.worksap.nlp.lucene.sudachi.ja.util.Instrumentation
+import com.worksap.nlp.search.aliases.JsonGetRestHandler
+import com.worksap.nlp.search.aliases.RestController
+
+/**
+ * Reports statistics of analysis caches, loaded dictionaries and [Instrumentation] of the local
+ * node on `GET _sudachi/stats`
+ */
+class RestSudachiStatsAction(
+    controller: RestController,
+    private val caches: AnalysisCacheService,
+    private val dictionaries: DictionaryService,
+) : JsonGetRestHandler(controller, listOf("/_sudachi/stats")) {
+  override fun getName(): String = "sudachi_stats_action"
+
+  override fun respond(): Map<String, Any?> {
+    return caches.statsReport() +
+        ("dictionaries" to dictionaries.stats()) +
+        ("instrumentation" to Instrumentation.report())
+  }
+}
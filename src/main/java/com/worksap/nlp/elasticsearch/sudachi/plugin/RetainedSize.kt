@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import com.worksap.nlp.lucene.sudachi.ja.CompactMorphemeList
+
+/**
+ * Estimates of heap memory retained by analysis cache entries.
+ *
+ * Sizes assume a 64-bit HotSpot JVM with compressed class pointers and compact strings, which are
+ * the defaults. Compressed oops are assumed to be enabled when the heap is smaller than 32GB.
+ */
+object RetainedSize {
+  private val compressedOops = Runtime.getRuntime().maxMemory() < (32L shl 30)
+
+  private const val OBJECT_HEADER = 12L
+  private const val ARRAY_HEADER = 16L
+  private val REFERENCE = if (compressedOops) 4L else 8L
+
+  /** Internal bookkeeping of cache implementations per entry: map node and eviction queue node */
+  val ENTRY_OVERHEAD = obj(6 * REFERENCE + 16) + obj(3 * REFERENCE + 4)
+
+  /** Key of [SharedAnalysisCache] entries, without the text which is a part of the value */
+  val SHARED_KEY = obj(2 * REFERENCE + 4)
+
+  private val STRING = obj(REFERENCE + 4 + 1 + 1)
+  private val COMPACT_LIST = obj(6 * REFERENCE)
+  private val SYNTHETIC_WORD = obj(4 * REFERENCE)
+
+  private fun align(size: Long): Long = (size + 7) and 7L.inv()
+
+  private fun obj(fields: Long): Long = align(OBJECT_HEADER + fields)
+
+  fun array(length: Int, elementSize: Long): Long = align(ARRAY_HEADER + length * elementSize)
+
+  fun referenceArray(length: Int): Long = array(length, REFERENCE)
+
+  fun string(value: String): Long {
+    var latin1 = true
+    for (c in value) {
+      if (c.code > 0xff) {
+        latin1 = false
+        break
+      }
+    }
+    return STRING + array(value.length, if (latin1) 1 else 2)
+  }
+
+  /**
+   * Size of a packed analysis result, including its text.
+   *
+   * Dictionary-backed morphemes take only their records, other ones also keep their forms.
+   */
+  fun compactMorphemeList(list: CompactMorphemeList): Long {
+    var size = COMPACT_LIST + string(list.text) + array(list.units.size, 4)
+    if (list.splits !== CompactMorphemeList.NO_SPLITS) {
+      size += array(list.splits.size, 4)
+    }
+    if (list.synthetic !== CompactMorphemeList.NO_SYNTHETIC) {
+      size += referenceArray(list.synthetic.size)
+    }
+    for (word in list.synthetic) {
+      size += SYNTHETIC_WORD + array(word.synonymGroupIds.size, 4)
+      size += string(word.normalizedForm)
+      if (word.dictionaryForm !== word.normalizedForm) {
+        size += string(word.dictionaryForm)
+      }
+      if (word.readingForm.isNotEmpty()) {
+        size += string(word.readingForm)
+      }
+    }
+    return size
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import com.worksap.nlp.lucene.sudachi.ja.CompactMorphemeList
+import com.worksap.nlp.sudachi.Dictionary
+import java.lang.ref.Cleaner
+import java.util.Collections
+import java.util.IdentityHashMap
+import java.util.WeakHashMap
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Node-level analysis cache which is shared between indices.
+ *
+ * Entries are keyed by an id of the dictionary instance and the input. Indices which are configured
+ * with the same dictionary use the same dictionary instance, so they share analysis results, e.g.
+ * across rollovers of time-based indices. Results of different or reloaded dictionaries are never
+ * mixed.
+ *
+ * Each index accesses the cache through its own [AnalysisStorage], which registers the dictionaries
+ * it uses. When no storage uses a dictionary anymore, because it was reloaded or its indices were
+ * closed, its entries are removed, so they do not keep the old dictionary in memory.
+ *
+ * All indices share the memory budget of the cache. Entries are attributed to the index which
+ * loaded them, so statistics of each index contain the size, count and evictions of its entries.
+ */
+class SharedAnalysisCache(maximumWeight: Long, impl: AnalysisCacheImpl) {
+  private class Key(val dictionary: Long, val text: String, val owner: Usage) {
+    private val hash = 31 * dictionary.hashCode() + text.hashCode()
+
+    override fun hashCode(): Int = hash
+
+    override fun equals(other: Any?): Boolean {
+      return other is Key && other.dictionary == dictionary && other.text == text
+    }
+  }
+
+  /** Entries of an index in the cache */
+  private class Usage {
+    val weight = LongAdder()
+    val count = LongAdder()
+    val evictions = LongAdder()
+  }
+
+  private object Attribution : EntryListener<Key, CompactMorphemeList> {
+    override fun added(key: Key, value: CompactMorphemeList, weight: Long) {
+      key.owner.weight.add(weight)
+      key.owner.count.increment()
+    }
+
+    override fun removed(key: Key, value: CompactMorphemeList, weight: Long, evicted: Boolean) {
+      key.owner.weight.add(-weight)
+      key.owner.count.decrement()
+      if (evicted) {
+        key.owner.evictions.increment()
+      }
+    }
+  }
+
+  private val totalLoadedWeight = LongAdder()
+  private val cache =
+      impl.create<Key, CompactMorphemeList>(maximumWeight, { _, ml -> weight(ml) }, Attribution)
+
+  // ids of dictionaries and numbers of storages which use them, guarded by ids
+  private val ids = WeakHashMap<Dictionary, Long>()
+  private val users = HashMap<Long, Int>()
+  private var lastId = 0L
+
+  private fun weight(list: CompactMorphemeList): Long {
+    return RetainedSize.compactMorphemeList(list) +
+        RetainedSize.SHARED_KEY +
+        RetainedSize.ENTRY_OVERHEAD
+  }
+
+  private fun register(dictionary: Dictionary): Long {
+    synchronized(ids) {
+      val id = ids.getOrPut(dictionary) { ++lastId }
+      users.merge(id, 1, Int::plus)
+      return id
+    }
+  }
+
+  private fun unregister(id: Long) {
+    val unused =
+        synchronized(ids) {
+          val remaining = users.getValue(id) - 1
+          if (remaining == 0) users.remove(id) else users[id] = remaining
+          remaining == 0
+        }
+    if (unused) {
+      cache.removeIf { it.dictionary == id }
+    }
+  }
+
+  /** Statistics of the cache as a whole */
+  fun stats(): AnalysisCacheStats = cache.stats().copy(loadedWeight = totalLoadedWeight.sum())
+
+  /** Create a view of the cache for a single index */
+  internal fun storage(): AnalysisStorage = IndexStorage(AccessCounters(), Usage())
+
+  /** Release [storage] once [owner], which uses it, becomes unreachable */
+  internal fun releaseWith(owner: Any, storage: AnalysisStorage) {
+    val released = storage as IndexStorage
+    cleaner.register(owner) { released.release() }
+  }
+
+  private class DictionaryId(val dictionary: Dictionary, val id: Long)
+
+  private inner class IndexStorage(
+      private val counters: AccessCounters,
+      private val usage: Usage,
+  ) : AnalysisStorage {
+    // dictionaries registered by this storage, guarded by itself
+    private val registered = IdentityHashMap<Dictionary, Long>()
+    // dictionaries whose results were cleared, guarded by registered
+    private val retired = Collections.newSetFromMap(WeakHashMap<Dictionary, Boolean>())
+    @Volatile private var last: DictionaryId? = null
+    @Volatile private var released = false
+
+    /** Id of [dictionary], or `null` if the storage was released or cleared of its results */
+    private fun idOf(dictionary: Dictionary): Long? {
+      val current = last
+      if (current != null && current.dictionary === dictionary) {
+        return current.id
+      }
+      synchronized(registered) {
+        if (released || dictionary in retired) {
+          return null
+        }
+        val id = registered.getOrPut(dictionary) { register(dictionary) }
+        last = DictionaryId(dictionary, id)
+        return id
+      }
+    }
+
+    override fun computeIfAbsent(
+        input: String,
+        dictionary: Dictionary,
+        loader: (String) -> CompactMorphemeList
+    ): CompactMorphemeList {
+      // results of an analysis which was running when the storage was released are not cached
+      val id = idOf(dictionary) ?: return loader(input)
+      val start = System.nanoTime()
+      var loaded = -1L
+      val result =
+          cache.computeIfAbsent(Key(id, input, usage)) { k ->
+            loader(k.text).also { loaded = weight(it) }
+          }
+      counters.record(start, loaded)
+      if (loaded >= 0) {
+        totalLoadedWeight.add(loaded)
+      }
+      return result
+    }
+
+    fun release() {
+      unregisterAll { released = true }
+    }
+
+    private inline fun unregisterAll(update: () -> Unit) {
+      val ids =
+          synchronized(registered) {
+            update()
+            last = null
+            registered.values.toList().also { registered.clear() }
+          }
+      ids.forEach { unregister(it) }
+    }
+
+    override fun stats(): AnalysisCacheStats {
+      return counters
+          .stats()
+          .copy(
+              evictions = usage.evictions.sum(),
+              weight = usage.weight.sum(),
+              count = usage.count.sum())
+    }
+
+    /**
+     * Results of the old dictionary are removed once no other index uses it.
+     *
+     * The storage stays the same, so it is still released when its owner is collected.
+     */
+    override fun cleared(): AnalysisStorage {
+      unregisterAll { retired.addAll(registered.keys) }
+      return this
+    }
+  }
+
+  private companion object {
+    val cleaner: Cleaner = Cleaner.create()
+  }
+}
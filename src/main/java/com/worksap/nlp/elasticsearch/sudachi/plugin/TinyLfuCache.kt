@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Weight-bounded cache with W-TinyLFU eviction policy.
+ *
+ * Entries are distributed over independent segments, each of them guarded by its own lock. Lookups
+ * do not take any locks: hits are recorded in a lossy per-segment buffer which is drained by a
+ * thread which manages to acquire the segment lock.
+ *
+ * Each segment consists of a small LRU window which accepts all new entries and a main segmented
+ * LRU region. An entry which is pushed out of the window is admitted to the main region only if its
+ * estimated access frequency is higher than the one of the entry it would replace. Frequencies are
+ * estimated by a [FrequencySketch], so one-off inputs do not push out frequently used ones.
+ *
+ * Values are computed outside of locks, so concurrent misses on the same key can compute the value
+ * several times. Only one of the computed values is retained and reported to the [listener].
+ */
+class TinyLfuCache<K : Any, V : Any>
+@JvmOverloads
+constructor(
+    maximumWeight: Long,
+    private val weigher: (K, V) -> Long,
+    concurrency: Int = defaultConcurrency(maximumWeight),
+    private val listener: EntryListener<K, V>? = null,
+) : AnalysisCacheBackend<K, V> {
+  private val segments: Array<Segment<K, V>>
+  private val segmentShift: Int
+  private val hits = LongAdder()
+  private val misses = LongAdder()
+  private val evictions = LongAdder()
+
+  init {
+    require(maximumWeight >= 0) { "maximumWeight must be non-negative, was $maximumWeight" }
+    require(concurrency > 0) { "concurrency must be positive, was $concurrency" }
+    val count = Integer.highestOneBit(concurrency)
+    segmentShift = 32 - Integer.numberOfTrailingZeros(count)
+    val segmentWeight = maximumWeight / count
+    segments = Array(count) { Segment(segmentWeight, evictions, listener) }
+  }
+
+  private fun segmentFor(hash: Int): Segment<K, V> {
+    // segments use the high bits of the hash, sketches use all of them
+    return if (segmentShift == 32) segments[0] else segments[hash ushr segmentShift]
+  }
+
+  override fun computeIfAbsent(key: K, loader: (K) -> V): V {
+    val hash = spread(key.hashCode())
+    val segment = segmentFor(hash)
+    val present = segment.map[key]
+    if (present != null) {
+      hits.increment()
+      segment.recordRead(present)
+      return present.value
+    }
+    misses.increment()
+    val value = loader(key)
+    val weight = weigher(key, value)
+    if (weight > segment.maximumWeight) {
+      return value
+    }
+    val node = Node(key, hash, value, weight)
+    val existing = segment.map.putIfAbsent(key, node)
+    if (existing != null) {
+      segment.recordRead(existing)
+      return existing.value
+    }
+    listener?.added(key, value, weight)
+    segment.insert(node)
+    return value
+  }
+
+  override fun removeIf(predicate: (K) -> Boolean) {
+    for (segment in segments) {
+      segment.removeIf(predicate)
+    }
+  }
+
+  /** Number of entries in the cache */
+  val size: Int
+    get() = segments.sumOf { it.map.size }
+
+  /** Total weight of entries in the cache */
+  val weight: Long
+    get() = segments.sumOf { s -> s.lock.withLock { s.weight } }
+
+  override fun stats(): AnalysisCacheStats {
+    return AnalysisCacheStats(
+        hits = hits.sum(),
+        misses = misses.sum(),
+        evictions = evictions.sum(),
+        weight = weight,
+        count = size.toLong())
+  }
+
+  private class Node<K, V>(val key: K, val hash: Int, val value: V, val weight: Long) {
+    var prev: Node<K, V>? = null
+    var next: Node<K, V>? = null
+    var queue: Int = NEW
+  }
+
+  /** Intrusive doubly-linked list of nodes, from the least recently used to the most */
+  private class AccessOrder<K, V>(val id: Int) {
+    var first: Node<K, V>? = null
+    var last: Node<K, V>? = null
+    var weight: Long = 0
+
+    fun addLast(node: Node<K, V>) {
+      node.queue = id
+      node.prev = last
+      node.next = null
+      val tail = last
+      if (tail == null) {
+        first = node
+      } else {
+        tail.next = node
+      }
+      last = node
+      weight += node.weight
+    }
+
+    fun remove(node: Node<K, V>) {
+      val prev = node.prev
+      val next = node.next
+      if (prev == null) {
+        first = next
+      } else {
+        prev.next = next
+      }
+      if (next == null) {
+        last = prev
+      } else {
+        next.prev = prev
+      }
+      node.prev = null
+      node.next = null
+      weight -= node.weight
+    }
+
+    fun moveToLast(node: Node<K, V>) {
+      if (last !== node) {
+        remove(node)
+        addLast(node)
+      }
+    }
+  }
+
+  private class Segment<K : Any, V : Any>(
+      val maximumWeight: Long,
+      val evictions: LongAdder,
+      val listener: EntryListener<K, V>?,
+  ) {
+    val map = ConcurrentHashMap<K, Node<K, V>>()
+    val lock = ReentrantLock()
+
+    private val readBuffer = AtomicReferenceArray<Node<K, V>?>(READ_BUFFER_SIZE)
+    private val readCounter = AtomicInteger()
+
+    // everything below is guarded by lock
+    private val sketch = FrequencySketch()
+    private val window = AccessOrder<K, V>(WINDOW)
+    private val probation = AccessOrder<K, V>(PROBATION)
+    private val protected = AccessOrder<K, V>(PROTECTED)
+    private val windowMaximum = (maximumWeight / 100).coerceAtLeast(1)
+    private val mainMaximum = maximumWeight - windowMaximum
+    private val protectedMaximum = mainMaximum * 4 / 5
+
+    val weight: Long
+      get() = window.weight + probation.weight + protected.weight
+
+    fun recordRead(node: Node<K, V>) {
+      val index = readCounter.getAndIncrement() and READ_BUFFER_MASK
+      readBuffer.lazySet(index, node)
+      if (index == READ_BUFFER_MASK && lock.tryLock()) {
+        try {
+          drainReads()
+        } finally {
+          lock.unlock()
+        }
+      }
+    }
+
+    fun insert(node: Node<K, V>) {
+      lock.withLock {
+        if (node.queue == DEAD) {
+          // removed by removeIf before it was linked
+          return
+        }
+        drainReads()
+        sketch.ensureCapacity(map.size)
+        sketch.increment(node.hash)
+        window.addLast(node)
+        evict()
+      }
+    }
+
+    fun removeIf(predicate: (K) -> Boolean) {
+      lock.withLock {
+        for (node in map.values) {
+          if (node.queue == DEAD || !predicate(node.key)) {
+            continue
+          }
+          when (node.queue) {
+            WINDOW -> window.remove(node)
+            PROBATION -> probation.remove(node)
+            PROTECTED -> protected.remove(node)
+          }
+          node.queue = DEAD
+          map.remove(node.key, node)
+          listener?.removed(node.key, node.value, node.weight, false)
+        }
+      }
+    }
+
+    private fun drainReads() {
+      for (i in 0 until READ_BUFFER_SIZE) {
+        val node = readBuffer.getAndSet(i, null) ?: continue
+        onAccess(node)
+      }
+    }
+
+    private fun onAccess(node: Node<K, V>) {
+      when (node.queue) {
+        WINDOW -> window.moveToLast(node)
+        PROBATION -> {
+          probation.remove(node)
+          protected.addLast(node)
+          demoteProtected()
+        }
+        PROTECTED -> protected.moveToLast(node)
+        else -> return // node is either not yet linked or already evicted
+      }
+      sketch.increment(node.hash)
+    }
+
+    private fun demoteProtected() {
+      while (protected.weight > protectedMaximum) {
+        val node = protected.first ?: return
+        protected.remove(node)
+        probation.addLast(node)
+      }
+    }
+
+    private fun evict() {
+      while (window.weight > windowMaximum) {
+        val candidate = window.first ?: break
+        window.remove(candidate)
+        admit(candidate)
+      }
+    }
+
+    /** Move a candidate from window to the main region, or evict it */
+    private fun admit(candidate: Node<K, V>) {
+      if (candidate.weight > mainMaximum) {
+        remove(candidate)
+        return
+      }
+      val candidateFreq = sketch.frequency(candidate.hash)
+      while (probation.weight + protected.weight + candidate.weight > mainMaximum) {
+        val victim = probation.first ?: protected.first
+        if (victim == null || sketch.frequency(victim.hash) >= candidateFreq) {
+          remove(candidate)
+          return
+        }
+        if (victim.queue == PROBATION) {
+          probation.remove(victim)
+        } else {
+          protected.remove(victim)
+        }
+        remove(victim)
+      }
+      probation.addLast(candidate)
+    }
+
+    private fun remove(node: Node<K, V>) {
+      node.queue = DEAD
+      map.remove(node.key, node)
+      evictions.increment()
+      listener?.removed(node.key, node.value, node.weight, true)
+    }
+  }
+
+  companion object {
+    private const val NEW = 0
+    private const val WINDOW = 1
+    private const val PROBATION = 2
+    private const val PROTECTED = 3
+    private const val DEAD = 4
+
+    private const val READ_BUFFER_SIZE = 16
+    private const val READ_BUFFER_MASK = READ_BUFFER_SIZE - 1
+
+    /** Segments smaller than this would make the eviction policy too imprecise */
+    private const val MIN_SEGMENT_WEIGHT = 1024 * 1024L
+
+    private fun defaultConcurrency(maximumWeight: Long): Int {
+      val bySize = (maximumWeight / MIN_SEGMENT_WEIGHT).coerceIn(1, 1 shl 16).toInt()
+      val byCpus = Runtime.getRuntime().availableProcessors() * 4
+      return bySize.coerceAtMost(byCpus)
+    }
+
+    internal fun spread(x: Int): Int {
+      var h = ((x ushr 16) xor x) * 0x45d9f3b
+      h = ((h ushr 16) xor h) * 0x45d9f3b
+      return (h ushr 16) xor h
+    }
+  }
+}
+
+/**
+ * Count-min sketch with 4-bit counters which estimates access frequency of recently seen hashes.
+ *
+ * Counters are halved when the number of increments reaches ten times the table size, so the
+ * estimation follows changes of access patterns. Not thread-safe.
+ */
+internal class FrequencySketch {
+  private var table = LongArray(MIN_SIZE)
+  private var tableMask = MIN_SIZE - 1
+  private var sampleSize = MIN_SIZE * 10
+  private var additions = 0
+
+  /** Grow the table so that it can distinguish the given number of entries */
+  fun ensureCapacity(entries: Int) {
+    if (entries <= table.size || table.size >= MAX_SIZE) {
+      return
+    }
+    val size = Integer.highestOneBit(entries.coerceAtMost(MAX_SIZE / 2) * 2)
+    table = LongArray(size)
+    tableMask = size - 1
+    sampleSize = size * 10
+    additions = 0
+  }
+
+  fun frequency(hash: Int): Int {
+    val start = (hash and 3) shl 2
+    var frequency = Int.MAX_VALUE
+    for (i in 0 until 4) {
+      val index = indexOf(hash, i)
+      val count = ((table[index] ushr ((start + i) shl 2)) and 0xfL).toInt()
+      frequency = frequency.coerceAtMost(count)
+    }
+    return frequency
+  }
+
+  fun increment(hash: Int) {
+    val start = (hash and 3) shl 2
+    var added = false
+    for (i in 0 until 4) {
+      added = incrementAt(indexOf(hash, i), start + i) or added
+    }
+    if (added && ++additions == sampleSize) {
+      reset()
+    }
+  }
+
+  private fun incrementAt(index: Int, counter: Int): Boolean {
+    val offset = counter shl 2
+    val mask = 0xfL shl offset
+    if ((table[index] and mask) != mask) {
+      table[index] += 1L shl offset
+      return true
+    }
+    return false
+  }
+
+  private fun indexOf(hash: Int, i: Int): Int {
+    var h = (hash + SEEDS[i]) * SEEDS[i]
+    h += h ushr 32
+    return h.toInt() and tableMask
+  }
+
+  private fun reset() {
+    var odd = 0
+    for (i in table.indices) {
+      odd += java.lang.Long.bitCount(table[i] and ONE_MASK)
+      table[i] = (table[i] ushr 1) and RESET_MASK
+    }
+    additions = (additions ushr 1) - (odd ushr 2)
+  }
+
+  private companion object {
+    const val MIN_SIZE = 64
+    const val MAX_SIZE = 1 shl 24
+    const val RESET_MASK = 0x7777777777777777L
+    const val ONE_MASK = 0x1111111111111111L
+    val SEEDS =
+        longArrayOf(
+            -0x3c5a37a36834ced9L, -0x4b6d499041670d8dL, -0x651e95c4d06fbfb1L, -0x340d631b7bdddcdbL)
+  }
+}
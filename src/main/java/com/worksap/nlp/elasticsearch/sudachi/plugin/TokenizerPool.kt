@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import com.worksap.nlp.lucene.sudachi.ja.NonCachedAnalysis
+import com.worksap.nlp.sudachi.Dictionary
+import com.worksap.nlp.sudachi.Tokenizer
+import java.util.concurrent.ConcurrentLinkedDeque
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Idle Sudachi tokenizers of a dictionary version, which are reused instead of creating new ones.
+ *
+ * Tokenizers keep their lattice buffers between analyses, so reusing them avoids allocating the
+ * buffers again. The most recently returned tokenizer is reused first. At most [Limits.maxIdle]
+ * tokenizers are kept, and tokenizers which were idle for longer than [Limits.idleTimeoutSeconds]
+ * are dropped by [trim].
+ *
+ * Buffers of a tokenizer grow with the longest text it analyzed at once and never shrink. Sudachi
+ * does not expose their sizes, so the length of analyzed texts is tracked instead: a tokenizer
+ * which analyzed a text longer than [Limits.maxInputLength] is dropped when it is returned, and a
+ * fresh one is created when needed.
+ */
+class TokenizerPool(val dictionary: Dictionary, private val limits: Limits) {
+  data class Limits(val maxIdle: Int, val idleTimeoutSeconds: Int, val maxInputLength: Int) {
+    companion object {
+      @JvmField
+      val DEFAULT =
+          Limits(
+              Runtime.getRuntime().availableProcessors() * 2,
+              300,
+              NonCachedAnalysis.DEFAULT_MAX_CHUNK_LENGTH)
+    }
+  }
+
+  /** Tokenizer of the pool, with the length of the longest text it analyzed at once */
+  class Pooled internal constructor(val tokenizer: Tokenizer) {
+    var largestInput = 0
+      private set
+
+    internal var since = 0L
+
+    /** Record that a text of [length] characters was analyzed at once */
+    fun analyzed(length: Int) {
+      if (length > largestInput) {
+        largestInput = length
+      }
+    }
+  }
+
+  private val idle = ConcurrentLinkedDeque<Pooled>()
+  private val idleCount = AtomicInteger()
+  @Volatile private var closed = false
+
+  private val created = LongAdder()
+  private val reused = LongAdder()
+  private val discarded = LongAdder()
+  private val discardedLarge = LongAdder()
+
+  /** Take an idle tokenizer, or create a new one if there is none */
+  fun acquire(): Pooled {
+    val entry = idle.pollFirst()
+    if (entry != null) {
+      idleCount.decrementAndGet()
+      reused.increment()
+      return entry
+    }
+    created.increment()
+    return Pooled(dictionary.create())
+  }
+
+  /**
+   * Return a tokenizer taken by [acquire]. It is dropped if the pool is full or closed, or if it
+   * analyzed a too long text.
+   */
+  fun release(pooled: Pooled) {
+    if (pooled.largestInput > limits.maxInputLength) {
+      discardedLarge.increment()
+      discarded.increment()
+      return
+    }
+    if (closed || idleCount.incrementAndGet() > limits.maxIdle) {
+      if (!closed) {
+        idleCount.decrementAndGet()
+      }
+      discarded.increment()
+      return
+    }
+    pooled.since = System.nanoTime()
+    idle.offerFirst(pooled)
+    // close() may have drained the pool between the check above and adding the tokenizer
+    if (closed && idle.remove(pooled)) {
+      idleCount.decrementAndGet()
+      discarded.increment()
+    }
+  }
+
+  /** Drop tokenizers which were idle for longer than the timeout, the oldest ones first */
+  fun trim(now: Long = System.nanoTime()) {
+    val timeout = TimeUnit.SECONDS.toNanos(limits.idleTimeoutSeconds.toLong())
+    while (true) {
+      val oldest = idle.peekLast() ?: return
+      if (now - oldest.since < timeout) {
+        return
+      }
+      if (idle.removeLastOccurrence(oldest)) {
+        idleCount.decrementAndGet()
+        discarded.increment()
+      }
+    }
+  }
+
+  /** Drop all idle tokenizers and tokenizers which are returned later */
+  fun close() {
+    closed = true
+    while (idle.pollFirst() != null) {
+      idleCount.decrementAndGet()
+      discarded.increment()
+    }
+  }
+
+  fun stats(): Stats {
+    var largest = 0
+    for (pooled in idle) {
+      largest = maxOf(largest, pooled.largestInput)
+    }
+    return Stats(
+        created.sum(),
+        reused.sum(),
+        discarded.sum(),
+        discardedLarge.sum(),
+        idleCount.get(),
+        largest)
+  }
+
+  data class Stats(
+      val created: Long,
+      val reused: Long,
+      val discarded: Long,
+      val discardedLarge: Long,
+      val idle: Int,
+      val largestIdleInput: Int,
+  ) {
+    operator fun plus(other: Stats) =
+        Stats(
+            created + other.created,
+            reused + other.reused,
+            discarded + other.discarded,
+            discardedLarge + other.discardedLarge,
+            idle + other.idle,
+            maxOf(largestIdleInput, other.largestIdleInput))
+
+    fun toMap(): Map<String, Any> =
+        mapOf(
+            "created" to created,
+            "reused" to reused,
+            "discarded" to discarded,
+            "discarded_after_large_input" to discardedLarge,
+            "idle" to idle,
+            "largest_idle_input_length" to largestIdleInput,
+        )
+
+    companion object {
+      @JvmField val EMPTY = Stats(0, 0, 0, 0, 0, 0)
+    }
+  }
+}
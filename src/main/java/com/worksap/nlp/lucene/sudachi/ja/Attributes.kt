@@ -16,6 +16,8 @@
 
 package com.worksap.nlp.lucene.sudachi.ja
 
+import com.worksap.nlp.sudachi.Morpheme
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute
 import org.apache.lucene.util.Attribute
 import org.apache.lucene.util.AttributeReflector
 import org.apache.lucene.util.AttributeSource
@@ -39,6 +41,14 @@ inline fun <reified T : Attribute> AttributeSource.existingAttribute(fn: (T) ->
   return checkNotNull(attr) { "Attribute ${T::class.java.simpleName} was not present" }
 }
 
+/** Append the surface of [m] to the term, copying it from the analyzed text when possible */
+fun CharTermAttribute.appendSurface(m: Morpheme): CharTermAttribute {
+  if (m is CompactMorpheme) {
+    return m.appendSurfaceTo(this)
+  }
+  return append(m.surface())
+}
+
 inline fun <reified T : Attribute> AttributeReflector.reflect(key: String, value: Any?) {
   reflect(T::class.java, key, value)
 }
@@ -18,21 +18,60 @@ package com.worksap.nlp.lucene.sudachi.ja
 
 import com.worksap.nlp.elasticsearch.sudachi.plugin.AnalysisCache
 import com.worksap.nlp.elasticsearch.sudachi.plugin.AnalysisCacheStats
+import com.worksap.nlp.elasticsearch.sudachi.plugin.ParallelAnalysisPool
+import com.worksap.nlp.elasticsearch.sudachi.plugin.ReloadableTokenizer
+import com.worksap.nlp.lucene.sudachi.ja.util.Instrumentation
+import com.worksap.nlp.sudachi.Dictionary
 import com.worksap.nlp.sudachi.Tokenizer.SplitMode
 import java.io.Reader
+import kotlin.math.min
 
-/** Objective of this class is to combine reloadable tokenizer with analysis cache. */
-class CachingTokenizer(
+/**
+ * Objective of this class is to combine reloadable tokenizer with analysis cache.
+ *
+ * Inputs which are not cached are analyzed in chunks of at most [maxChunkLength] characters, or at
+ * once if it is not positive. If [pool] is given, chunks of large inputs are analyzed on it in
+ * parallel.
+ */
+class CachingTokenizer
+@JvmOverloads
+constructor(
     val tokenizer: CurrentTokenizer,
     private val splitMode: SplitMode,
-    private val cache: AnalysisCache
+    private val cache: AnalysisCache,
+    private val maxChunkLength: Int = NonCachedAnalysis.DEFAULT_MAX_CHUNK_LENGTH,
+    private val pool: ParallelAnalysisPool? = null
 ) {
   fun tokenize(input: Reader): MorphemeIterator {
-    return cache.analyze(tokenizer.get(), splitMode, input)
+    val start = Instrumentation.start()
+    val sudachi = tokenizer.get()
+    // the dictionary may be reloaded after the tokenizer was taken, results belong to its version
+    val dictionary =
+        (tokenizer as? ReloadableTokenizer)?.tokenizerDictionary() ?: tokenizer.dictionary().get()
+    lastDictionary = dictionary
+    val result = cache.analyze(sudachi, dictionary, splitMode, input, maxChunkLength, pool)
+    Instrumentation.record(Instrumentation.Probe.TOKENIZE, start)
+    return result
+  }
+
+  /**
+   * Return the Sudachi tokenizer to its pool until the next input.
+   *
+   * [inputLength] is the length of the analyzed input, the tokenizer analyzed at most a chunk of it
+   * at once.
+   */
+  fun release(inputLength: Int) {
+    val tokenizer = tokenizer as? ReloadableTokenizer ?: return
+    tokenizer.analyzed(if (maxChunkLength > 0) min(inputLength, maxChunkLength) else inputLength)
+    tokenizer.release()
   }
 
   val dictionary: CurrentDictionary
     get() = tokenizer.dictionary()
 
+  /** Dictionary which produced morphemes of the last [tokenize] call */
+  var lastDictionary: Dictionary? = null
+    private set
+
   fun cacheStats(): AnalysisCacheStats = cache.stats()
 }
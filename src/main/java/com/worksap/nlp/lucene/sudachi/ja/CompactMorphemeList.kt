@@ -0,0 +1,438 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.lucene.sudachi.ja
+
+import com.worksap.nlp.sudachi.Dictionary
+import com.worksap.nlp.sudachi.Morpheme
+import com.worksap.nlp.sudachi.MorphemeList
+import com.worksap.nlp.sudachi.Tokenizer.SplitMode
+import com.worksap.nlp.sudachi.WordId
+import com.worksap.nlp.sudachi.dictionary.DictionaryAccess
+import com.worksap.nlp.sudachi.dictionary.Lexicon
+import com.worksap.nlp.sudachi.dictionary.WordInfo
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute
+
+/**
+ * Analysis result in C mode, packed into primitive arrays.
+ *
+ * Each morpheme is stored as a record of five ints: begin and end offsets in [text], word id, flags
+ * and part of speech id. Information about morphemes is looked up in the dictionary lazily, only
+ * when it is accessed. Morphemes which are not backed by a dictionary entry (OOV or joined words)
+ * keep their forms in a separate table.
+ *
+ * Splits of morphemes to A and B units are computed once and stored in the same way, so producing
+ * any split mode does not need reanalysis.
+ */
+class CompactMorphemeList
+private constructor(
+    /** Analyzed text, morpheme offsets point into it */
+    val text: String,
+    internal val units: IntArray,
+    internal val splits: IntArray,
+    internal val synthetic: Array<SyntheticWord>,
+    internal val dictionary: Dictionary,
+    internal val lexicon: Lexicon,
+) {
+  /** Number of C mode morphemes */
+  val size: Int
+    get() = units.size / STRIDE
+
+  /** Iterate over morphemes of the given split mode */
+  fun morphemes(mode: SplitMode): Iterable<Morpheme> = Iterable { MorphemeIterator(mode, false) }
+
+  /**
+   * Iterate over morphemes of the given split mode without allocating them.
+   *
+   * Each iterator returns a single morpheme object which is re-pointed to the next morpheme on
+   * every call of `next()`, so a returned morpheme must not be used after that.
+   */
+  fun morphemeViews(mode: SplitMode): Iterable<Morpheme> = Iterable { MorphemeIterator(mode, true) }
+
+  /** Number of units of the morpheme at [offset] in [mode], or 0 if it is not split */
+  internal fun splitCount(offset: Int, mode: SplitMode): Int {
+    val info = units[offset + INFO]
+    if (info and SYNTHETIC != 0 || mode == SplitMode.C) {
+      return 0
+    }
+    val start = info ushr PAYLOAD_SHIFT
+    if (start == 0) {
+      return 0
+    }
+    return if (mode == SplitMode.A) splits[start - 1] else splits[start]
+  }
+
+  /**
+   * [index]-th unit of the morpheme at [offset] in [mode], which must be split.
+   *
+   * The unit is [target] re-pointed to it if given, otherwise a new morpheme.
+   */
+  internal fun splitUnit(
+      offset: Int,
+      mode: SplitMode,
+      index: Int,
+      target: CompactMorpheme? = null
+  ): CompactMorpheme {
+    val unit = splitUnitOffset(offset, mode, index)
+    return target?.point(this, splits, unit) ?: CompactMorpheme(this, splits, unit)
+  }
+
+  private fun splitUnitOffset(offset: Int, mode: SplitMode, index: Int): Int {
+    val start = units[offset + INFO] ushr PAYLOAD_SHIFT
+    val from = if (mode == SplitMode.A) start + 1 else start + 1 + splits[start - 1] * STRIDE
+    return from + index * STRIDE
+  }
+
+  private inner class MorphemeIterator(
+      private val mode: SplitMode,
+      private val reuse: Boolean,
+  ) : Iterator<Morpheme> {
+    private var offset = 0
+    private var splitOffset = 0
+    private var splitIndex = 0
+    private var splitCount = 0
+    private var view: CompactMorpheme? = null
+
+    override fun hasNext(): Boolean = splitIndex < splitCount || offset < units.size
+
+    override fun next(): Morpheme {
+      if (splitIndex < splitCount) {
+        return at(splits, splitUnitOffset(splitOffset, mode, splitIndex++))
+      }
+      if (offset >= units.size) {
+        throw NoSuchElementException()
+      }
+      val unit = offset
+      offset += STRIDE
+      val count = splitCount(unit, mode)
+      if (count == 0) {
+        return at(units, unit)
+      }
+      splitOffset = unit
+      splitCount = count
+      splitIndex = 1
+      return at(splits, splitUnitOffset(unit, mode, 0))
+    }
+
+    private fun at(data: IntArray, offset: Int): CompactMorpheme {
+      val current = view
+      if (current != null) {
+        return current.point(this@CompactMorphemeList, data, offset)
+      }
+      val result = CompactMorpheme(this@CompactMorphemeList, data, offset)
+      if (reuse) {
+        view = result
+      }
+      return result
+    }
+  }
+
+  /** Forms of a morpheme which is not backed by a dictionary entry */
+  internal class SyntheticWord(
+      val normalizedForm: String,
+      val dictionaryForm: String,
+      val readingForm: String,
+      val synonymGroupIds: IntArray,
+  )
+
+  /** Records of morphemes which are packed into a [CompactMorphemeList] */
+  private class Packer(private val dictionary: Dictionary, capacity: Int) {
+    private val lexicon = lexiconOf(dictionary)
+    private val units = IntArrayBuilder(capacity * STRIDE)
+    private val splits = IntArrayBuilder()
+    private val synthetic = ArrayList<SyntheticWord>()
+
+    /** Add [m] whose offsets are relative to [base] */
+    fun add(m: Morpheme, base: Int) {
+      var info = if (m.isOOV) OOV else 0
+      if (m.dictionaryId < 0) {
+        info = info or SYNTHETIC or (synthetic.size shl PAYLOAD_SHIFT)
+        synthetic.add(
+            SyntheticWord(
+                m.normalizedForm(), m.dictionaryForm(), m.readingForm(), m.synonymGroupIds))
+      } else {
+        info = info or (packSplits(m, base) shl PAYLOAD_SHIFT)
+      }
+      units.add(m.begin() + base, m.end() + base, m.wordId, info, m.partOfSpeechId().toInt())
+    }
+
+    fun build(text: String): CompactMorphemeList {
+      return CompactMorphemeList(
+          text,
+          units.toArray() ?: IntArray(0),
+          splits.toArray() ?: NO_SPLITS,
+          if (synthetic.isEmpty()) NO_SYNTHETIC else synthetic.toTypedArray(),
+          dictionary,
+          lexicon)
+    }
+
+    /**
+     * Store A and B splits of a morpheme as `[countA, countB, A units..., B units...]`.
+     *
+     * @return position of countB, or 0 if the morpheme is not split in any mode
+     */
+    private fun packSplits(m: Morpheme, base: Int): Int {
+      val a = nonTrivialSplit(m, SplitMode.A)
+      val b = nonTrivialSplit(m, SplitMode.B)
+      if (a.isEmpty() && b.isEmpty()) {
+        return 0
+      }
+      val start = splits.size + 1
+      splits.add(a.size)
+      splits.add(b.size)
+      for (s in a) {
+        splits.add(s.begin() + base, s.end() + base, s.wordId, 0, s.partOfSpeechId().toInt())
+      }
+      for (s in b) {
+        splits.add(s.begin() + base, s.end() + base, s.wordId, 0, s.partOfSpeechId().toInt())
+      }
+      return start
+    }
+
+    private fun nonTrivialSplit(m: Morpheme, mode: SplitMode): List<Morpheme> {
+      val split = m.split(mode)
+      if (split.size == 1) {
+        return emptyList()
+      }
+      return split
+    }
+  }
+
+  companion object {
+    internal const val STRIDE = 5
+    internal const val BEGIN = 0
+    internal const val END = 1
+    internal const val WORD_ID = 2
+    internal const val INFO = 3
+    internal const val POS_ID = 4
+
+    internal const val OOV = 1
+    internal const val SYNTHETIC = 2
+    internal const val PAYLOAD_SHIFT = 2
+
+    internal val NO_SPLITS = IntArray(0)
+    internal val NO_SYNTHETIC = arrayOf<SyntheticWord>()
+
+    /**
+     * Pack analysis result of [text] in C mode, produced by a tokenizer of [dictionary].
+     *
+     * Dictionary must be the same when the packed list is used, as its entries are referenced by
+     * word ids.
+     */
+    @JvmStatic
+    fun compact(text: String, list: MorphemeList, dictionary: Dictionary): CompactMorphemeList {
+      val packer = Packer(dictionary, list.size)
+      for (m in list) {
+        packer.add(m, 0)
+      }
+      return packer.build(text)
+    }
+
+    /**
+     * Pack the whole [analysis] of [text] in C mode, produced by a tokenizer of [dictionary].
+     *
+     * Morpheme offsets are taken relative to the base offset of the analysis, so chunked and
+     * sentence by sentence analyses produce a single list.
+     */
+    internal fun compact(
+        text: String,
+        analysis: com.worksap.nlp.lucene.sudachi.ja.MorphemeIterator,
+        dictionary: Dictionary
+    ): CompactMorphemeList {
+      val packer = Packer(dictionary, 16)
+      while (true) {
+        val m = analysis.next() ?: break
+        packer.add(m, analysis.baseOffset)
+      }
+      return packer.build(text)
+    }
+
+    /**
+     * Recreate a list from its packed data, e.g. read from a persistent cache.
+     *
+     * [dictionary] must be the one which produced the data.
+     */
+    internal fun restore(
+        text: String,
+        units: IntArray,
+        splits: IntArray,
+        synthetic: Array<SyntheticWord>,
+        dictionary: Dictionary
+    ): CompactMorphemeList {
+      return CompactMorphemeList(
+          text,
+          units,
+          if (splits.isEmpty()) NO_SPLITS else splits,
+          if (synthetic.isEmpty()) NO_SYNTHETIC else synthetic,
+          dictionary,
+          lexiconOf(dictionary))
+    }
+
+    private fun lexiconOf(dictionary: Dictionary): Lexicon {
+      return requireNotNull((dictionary as? DictionaryAccess)?.lexicon) {
+        "dictionary must provide access to its lexicon: ${dictionary.javaClass}"
+      }
+    }
+  }
+}
+
+/** Growing int array, whose storage is allocated on the first value with [capacity] ints */
+private class IntArrayBuilder(private val capacity: Int = 16) {
+  private var data: IntArray? = null
+  var size = 0
+    private set
+
+  fun add(value: Int) {
+    var d = data
+    if (d == null) {
+      d = IntArray(if (capacity > 0) capacity else 16)
+      data = d
+    } else if (size == d.size) {
+      d = d.copyOf(d.size * 2)
+      data = d
+    }
+    d[size++] = value
+  }
+
+  fun add(v0: Int, v1: Int, v2: Int, v3: Int, v4: Int) {
+    add(v0)
+    add(v1)
+    add(v2)
+    add(v3)
+    add(v4)
+  }
+
+  fun toArray(): IntArray? {
+    val d = data ?: return null
+    return if (d.size == size) d else d.copyOf(size)
+  }
+}
+
+/**
+ * Morpheme view over a record of [CompactMorphemeList].
+ *
+ * Dictionary information is decoded on the first access and kept for subsequent ones. A view can be
+ * [re-pointed][point] to another record, so iterating a list does not allocate a morpheme for each
+ * record, see [CompactMorphemeList.morphemeViews].
+ */
+internal class CompactMorpheme(
+    private var list: CompactMorphemeList,
+    private var data: IntArray,
+    private var offset: Int,
+) : Morpheme {
+  private var wordInfo: WordInfo? = null
+
+  /** Make this morpheme a view of the record at [offset] of [data] of [list] */
+  fun point(list: CompactMorphemeList, data: IntArray, offset: Int): CompactMorpheme {
+    this.list = list
+    this.data = data
+    this.offset = offset
+    wordInfo = null
+    return this
+  }
+
+  /** Morpheme of the current record which is not affected when this one is re-pointed */
+  fun detached(): CompactMorpheme = CompactMorpheme(list, data, offset)
+
+  private val info: Int
+    get() = data[offset + CompactMorphemeList.INFO]
+
+  private val synthetic: CompactMorphemeList.SyntheticWord?
+    get() {
+      val i = info
+      if (i and CompactMorphemeList.SYNTHETIC == 0) {
+        return null
+      }
+      return list.synthetic[i ushr CompactMorphemeList.PAYLOAD_SHIFT]
+    }
+
+  private fun wordInfo(): WordInfo {
+    var wi = wordInfo
+    if (wi == null) {
+      wi = list.lexicon.getWordInfo(wordId)
+      wordInfo = wi
+    }
+    return wi!!
+  }
+
+  override fun begin(): Int = data[offset + CompactMorphemeList.BEGIN]
+
+  override fun end(): Int = data[offset + CompactMorphemeList.END]
+
+  override fun surface(): String = list.text.substring(begin(), end())
+
+  /** Append the surface to [term] without creating a string */
+  fun appendSurfaceTo(term: CharTermAttribute): CharTermAttribute =
+      term.append(list.text, begin(), end())
+
+  override fun partOfSpeech(): List<String> =
+      list.dictionary.getPartOfSpeechString(partOfSpeechId())
+
+  override fun partOfSpeechId(): Short = data[offset + CompactMorphemeList.POS_ID].toShort()
+
+  override fun dictionaryForm(): String = synthetic?.dictionaryForm ?: wordInfo().dictionaryForm
+
+  override fun normalizedForm(): String = synthetic?.normalizedForm ?: wordInfo().normalizedForm
+
+  override fun readingForm(): String = synthetic?.readingForm ?: wordInfo().readingForm
+
+  override fun split(mode: SplitMode): List<Morpheme> {
+    val count = splitSize(mode)
+    if (count == 1) {
+      return listOf(this)
+    }
+    return List(count) { list.splitUnit(offset, mode, it) }
+  }
+
+  /** Number of units of this morpheme in [mode], 1 if it is not split */
+  fun splitSize(mode: SplitMode): Int {
+    if (data !== list.units) {
+      return 1
+    }
+    val count = list.splitCount(offset, mode)
+    return if (count == 0) 1 else count
+  }
+
+  /**
+   * [index]-th unit of this morpheme in [mode], without creating the list of all of them.
+   *
+   * The unit is [target] re-pointed to it if given, [target] must not be this morpheme.
+   */
+  fun splitUnit(mode: SplitMode, index: Int, target: CompactMorpheme? = null): CompactMorpheme {
+    if (splitSize(mode) == 1) {
+      return this
+    }
+    return list.splitUnit(offset, mode, index, target)
+  }
+
+  override fun isOOV(): Boolean = info and CompactMorphemeList.OOV != 0
+
+  override fun getWordId(): Int = data[offset + CompactMorphemeList.WORD_ID]
+
+  override fun getDictionaryId(): Int {
+    if (synthetic != null) {
+      return -1
+    }
+    return WordId.dic(wordId)
+  }
+
+  override fun getSynonymGroupIds(): IntArray =
+      synthetic?.synonymGroupIds ?: wordInfo().synonymGoupIds
+
+  override fun toString(): String {
+    return "CompactMorpheme{surface=${surface()}, begin=${begin()}, end=${end()}, wid=$wordId}"
+  }
+}
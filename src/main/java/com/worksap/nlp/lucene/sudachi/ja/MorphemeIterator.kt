@@ -16,11 +16,18 @@
 
 package com.worksap.nlp.lucene.sudachi.ja
 
-import com.worksap.nlp.lucene.sudachi.ja.util.Strings
+import com.worksap.nlp.elasticsearch.sudachi.plugin.ParallelAnalysisPool
+import com.worksap.nlp.lucene.sudachi.ja.input.InputChunker
+import com.worksap.nlp.lucene.sudachi.ja.util.Instrumentation
 import com.worksap.nlp.sudachi.Morpheme
+import com.worksap.nlp.sudachi.MorphemeList
 import com.worksap.nlp.sudachi.Tokenizer
 import com.worksap.nlp.sudachi.Tokenizer.SplitMode
+import com.worksap.nlp.sudachi.sentdetect.SentenceDetector
 import java.io.Reader
+import java.nio.CharBuffer
+import java.util.concurrent.ForkJoinTask
+import kotlin.math.abs
 
 interface MorphemeIterator {
   companion object {
@@ -34,6 +41,9 @@ interface MorphemeIterator {
   /**
    * Non-Java interface for iterator to be more in line with Lucene TokenStream API
    *
+   * A returned morpheme must not be used after the next call, as cached analyses return the same
+   * object for all morphemes (see [CompactMorphemeList.morphemeViews]).
+   *
    * @return `null` if iteration was ended, [Morpheme] if not
    */
   fun next(): Morpheme?
@@ -60,50 +70,160 @@ class CachedAnalysis(source: Iterable<Morpheme>) : MorphemeIterator {
   override var baseOffset: Int = 0
 }
 
-class NonCachedAnalysis(tokenizer: Tokenizer, input: Reader, splitMode: SplitMode) :
-    MorphemeIterator {
+/**
+ * Analysis of inputs which are too long to be cached as a whole.
+ *
+ * Input is read in chunks (see [InputChunker]) and split into sentences, each of them is analyzed
+ * by [analyze] which looks the sentence up in a cache. Sentence boundaries are detected without the
+ * dictionary, so they can differ from the ones of [NonCachedAnalysis] in rare cases, e.g.
+ * dictionary words which contain `。`.
+ */
+class SentenceCachedAnalysis(
+    input: Reader,
+    private val mode: SplitMode,
+    maxChunkLength: Int,
+    private val analyze: (String) -> CompactMorphemeList
+) : MorphemeIterator {
+  private val chunker =
+      InputChunker(
+          input,
+          if (maxChunkLength > 0) maxChunkLength else NonCachedAnalysis.DEFAULT_MAX_CHUNK_LENGTH)
+  private val detector = SentenceDetector()
+  private var chunk = ""
+  private var position = 0
+  private var morphemeIterator: Iterator<Morpheme> = emptyList<Morpheme>().iterator()
+
+  override fun next(): Morpheme? {
+    while (true) {
+      val mi = morphemeIterator
+      if (mi.hasNext()) {
+        return mi.next()
+      }
+      val sentence = nextSentence()
+      if (sentence == null) {
+        baseOffset = chunker.end
+        return null
+      }
+      morphemeIterator = analyze(sentence).morphemeViews(mode).iterator()
+    }
+  }
 
-  private object EmptyIterator : Iterator<Morpheme> {
+  /** Set [baseOffset] to the start of the next sentence and return it */
+  private fun nextSentence(): String? {
+    var chunk = chunk
+    while (position >= chunk.length) {
+      chunk = chunker.next() ?: return null
+      this.chunk = chunk
+      position = 0
+    }
+    // negative values are lengths of the text without a sentence end
+    val eos = detector.getEos(CharBuffer.wrap(chunk, position, chunk.length), null)
+    val start = position
+    position += abs(eos)
+    baseOffset = chunker.offset + start
+    return chunk.substring(start, position)
+  }
+
+  override var baseOffset = 0
+}
+
+/**
+ * Analyzes input which is not cached.
+ *
+ * If [maxChunkLength] is positive, input is read and analyzed in chunks of at most that many
+ * characters (see [InputChunker]), so memory used by the analysis does not depend on the input
+ * length. Otherwise, the whole input is analyzed at once.
+ *
+ * If [parallel] is given, up to its parallelism chunks are analyzed ahead on the pool, and their
+ * results are returned in the input order.
+ */
+class NonCachedAnalysis
+@JvmOverloads
+constructor(
+    private val tokenizer: Tokenizer,
+    input: Reader,
+    private val splitMode: SplitMode,
+    maxChunkLength: Int = DEFAULT_MAX_CHUNK_LENGTH,
+    private val parallel: ParallelAnalysisPool.Session? = null
+) : MorphemeIterator {
+
+  private object EmptyIterator : Iterator<Nothing> {
     override fun hasNext() = false
     override fun next() = throw IllegalStateException()
   }
 
-  private val sentenceIterator = tokenizer.tokenizeSentences(splitMode, input).iterator()
+  private val chunker = if (maxChunkLength > 0) InputChunker(input, maxChunkLength) else null
+  private var sentenceIterator: Iterator<MorphemeList> =
+      if (chunker == null) analyze { tokenizer.tokenizeSentences(splitMode, input) }
+      else EmptyIterator
   private var morphemeIterator: Iterator<Morpheme> = EmptyIterator
   private var currentLength = 0
+  private val pending = ArrayDeque<PendingChunk>()
+
+  private class PendingChunk(val offset: Int, val task: ForkJoinTask<Iterable<MorphemeList>>)
+
+  private inline fun analyze(fn: () -> Iterable<MorphemeList>): Iterator<MorphemeList> {
+    val start = Instrumentation.start()
+    val sentences = fn()
+    Instrumentation.record(Instrumentation.Probe.ANALYZE, start)
+    return sentences.iterator()
+  }
 
   override fun next(): Morpheme? {
-    val mi = morphemeIterator
-    if (mi.hasNext()) {
-      return mi.next()
-    } else {
+    while (true) {
+      val mi = morphemeIterator
+      if (mi.hasNext()) {
+        return mi.next()
+      }
       baseOffset += currentLength
+      currentLength = 0
       if (sentenceIterator.hasNext()) {
         val morphs = sentenceIterator.next()
         currentLength = morphs.lastOrNull()?.end() ?: 0
         morphemeIterator = morphs.iterator()
-        // try once more with a recursive call
-        return this.next()
-      } else {
-        currentLength = 0
+        continue
+      }
+      val chunker = chunker ?: return null
+      // morphemes of the previous chunk are not referenced after this point
+      morphemeIterator = EmptyIterator
+      if (!nextChunk(chunker)) {
+        baseOffset = chunker.end
+        return null
       }
     }
-    return null
   }
 
-  override var baseOffset = 0
-}
-
-class NonPunctuationMorphemes(private val inner: MorphemeIterator) : MorphemeIterator {
-  override fun next(): Morpheme? {
-    while (true) {
-      val next = inner.next() ?: return null
-      if (!Strings.isPunctuation(next.normalizedForm())) {
-        return next
+  /** Set [baseOffset] and [sentenceIterator] to the next chunk, if there is one */
+  private fun nextChunk(chunker: InputChunker): Boolean {
+    val parallel = parallel
+    if (parallel != null) {
+      while (pending.size < parallel.parallelism) {
+        val text = chunker.next() ?: break
+        if (pending.isEmpty() && chunker.exhausted) {
+          // the last chunk is analyzed here when there is nothing else to wait for
+          return analyzeChunk(chunker.offset, text)
+        }
+        pending.addLast(PendingChunk(chunker.offset, parallel.submit(splitMode, text)))
       }
+      val chunk = pending.removeFirstOrNull() ?: return false
+      baseOffset = chunk.offset
+      sentenceIterator = chunk.task.join().iterator()
+      return true
     }
+    val text = chunker.next() ?: return false
+    return analyzeChunk(chunker.offset, text)
+  }
+
+  private fun analyzeChunk(offset: Int, text: String): Boolean {
+    baseOffset = offset
+    sentenceIterator = analyze { tokenizer.tokenizeSentences(splitMode, text) }
+    return true
   }
 
-  override val baseOffset: Int
-    get() = inner.baseOffset
+  override var baseOffset = 0
+
+  companion object {
+    /** Default maximum length of a chunk of input which is analyzed at once, in characters */
+    const val DEFAULT_MAX_CHUNK_LENGTH = 16 * 1024
+  }
 }
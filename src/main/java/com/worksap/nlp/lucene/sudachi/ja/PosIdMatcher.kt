@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.lucene.sudachi.ja
+
+import com.worksap.nlp.sudachi.Dictionary
+import com.worksap.nlp.sudachi.Morpheme
+import com.worksap.nlp.sudachi.PartialPOS
+
+/**
+ * Matches morphemes by part of speech id with a bit set.
+ *
+ * It matches the same parts of speech as [Dictionary.posMatcher] for the same tags, but does not
+ * need morphemes to be produced by a Sudachi tokenizer: packed morphemes of cached analyses keep
+ * their part of speech id, so matching them does not decode dictionary entries.
+ */
+class PosIdMatcher private constructor(private val bits: LongArray) {
+  fun test(posId: Int): Boolean {
+    val index = posId ushr 6
+    return index < bits.size && bits[index] and (1L shl posId) != 0L
+  }
+
+  fun test(m: Morpheme): Boolean = test(m.partOfSpeechId().toInt())
+
+  companion object {
+    /** Matcher of parts of speech of [dictionary] which match any of [tags] */
+    @JvmStatic
+    fun of(dictionary: Dictionary, tags: Iterable<PartialPOS>): PosIdMatcher {
+      val matching = dictionary.posMatcher(tags).toHashSet<List<String>>()
+      val size = dictionary.partOfSpeechSize
+      val bits = LongArray((size + 63) ushr 6)
+      for (id in 0 until size) {
+        if (dictionary.getPartOfSpeechString(id.toShort()) in matching) {
+          bits[id ushr 6] = bits[id ushr 6] or (1L shl id)
+        }
+      }
+      return PosIdMatcher(bits)
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.lucene.sudachi.ja
+
+import com.worksap.nlp.lucene.sudachi.ja.util.Strings
+import com.worksap.nlp.sudachi.Dictionary
+import com.worksap.nlp.sudachi.Morpheme
+import com.worksap.nlp.sudachi.WordId
+import com.worksap.nlp.sudachi.dictionary.DictionaryAccess
+import com.worksap.nlp.sudachi.dictionary.Lexicon
+import java.util.WeakHashMap
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Decides whether morphemes are punctuation, i.e. whether their normalized form consists only of
+ * punctuation characters (see [Strings.isPunctuation]).
+ *
+ * The decision for a dictionary word is made once and remembered by its word id, so checking a
+ * token does not decode the word. OOV and other morphemes without a dictionary entry keep their
+ * normalized form in memory and are checked directly.
+ *
+ * Instances are shared by all users of a dictionary, use [of] to get one.
+ */
+class PunctuationMatcher private constructor(private val lexicon: Lexicon) {
+  /**
+   * Two bits for each word ([KNOWN] and [PUNCTUATION]) by dictionary id, allocated on first use.
+   *
+   * Updates are not synchronized: a lost update only makes a word to be checked again.
+   */
+  private val flags = AtomicReferenceArray<IntArray>(WordId.MAX_DIC_ID + 1)
+
+  fun test(m: Morpheme): Boolean {
+    if (m.isOOV) {
+      return Strings.isPunctuation(m.normalizedForm())
+    }
+    val dic = m.dictionaryId
+    if (dic < 0) {
+      return Strings.isPunctuation(m.normalizedForm())
+    }
+    val wordId = m.wordId
+    val word = WordId.word(wordId)
+    val bits = flagsOf(dic)
+    val slot = word ushr WORDS_PER_SLOT_SHIFT
+    if (slot >= bits.size) {
+      return Strings.isPunctuation(m.normalizedForm())
+    }
+    val shift = (word and WORDS_PER_SLOT_MASK) shl 1
+    val value = bits[slot] ushr shift
+    if (value and KNOWN != 0) {
+      return value and PUNCTUATION != 0
+    }
+    val result = Strings.isPunctuation(lexicon.getWordInfo(wordId).normalizedForm)
+    val flag = if (result) KNOWN or PUNCTUATION else KNOWN
+    bits[slot] = bits[slot] or (flag shl shift)
+    return result
+  }
+
+  private fun flagsOf(dic: Int): IntArray {
+    val existing = flags.get(dic)
+    if (existing != null) {
+      return existing
+    }
+    // each dictionary has at most as many words as all of them together
+    val created = IntArray((lexicon.size() + WORDS_PER_SLOT_MASK) ushr WORDS_PER_SLOT_SHIFT)
+    return if (flags.compareAndSet(dic, null, created)) created else flags.get(dic)
+  }
+
+  companion object {
+    private const val KNOWN = 1
+    private const val PUNCTUATION = 2
+    private const val WORDS_PER_SLOT_SHIFT = 4
+    private const val WORDS_PER_SLOT_MASK = (1 shl WORDS_PER_SLOT_SHIFT) - 1
+
+    private val instances = WeakHashMap<Dictionary, PunctuationMatcher>()
+
+    /** Matcher for morphemes produced by [dictionary] */
+    @JvmStatic
+    fun of(dictionary: Dictionary): PunctuationMatcher {
+      val lexicon =
+          requireNotNull((dictionary as? DictionaryAccess)?.lexicon) {
+            "dictionary must provide access to its lexicon: ${dictionary.javaClass}"
+          }
+      return synchronized(instances) {
+        instances.getOrPut(dictionary) { PunctuationMatcher(lexicon) }
+      }
+    }
+  }
+}
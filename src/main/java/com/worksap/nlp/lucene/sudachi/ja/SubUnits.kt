@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.lucene.sudachi.ja
+
+import com.worksap.nlp.sudachi.Morpheme
+import com.worksap.nlp.sudachi.Tokenizer.SplitMode
+
+/**
+ * Reusable cursor over units of a morpheme in a split mode.
+ *
+ * Packed morphemes of cached analyses know their units, so iterating them does not create lists and
+ * returns a single morpheme which is re-pointed to each unit, valid until the next call of [next].
+ * Other morphemes are split by Sudachi.
+ */
+class SubUnits {
+  private var compact: CompactMorpheme? = null
+  private var unit: CompactMorpheme? = null
+  private var list: List<Morpheme>? = null
+  private var mode = SplitMode.C
+
+  /** Number of units of the current morpheme */
+  var size = 0
+    private set
+
+  /** Index of the unit which is returned by the next call of [next] */
+  var index = 0
+    private set
+
+  /** Start iterating units of [m] in [mode] */
+  fun reset(m: Morpheme, mode: SplitMode) {
+    this.mode = mode
+    index = 0
+    if (m is CompactMorpheme) {
+      compact = m
+      list = null
+      size = m.splitSize(mode)
+    } else {
+      compact = null
+      val split = m.split(mode)
+      list = split
+      size = split.size
+    }
+  }
+
+  /** Stop iterating, releasing the current morpheme */
+  fun clear() {
+    compact = null
+    list = null
+    size = 0
+    index = 0
+  }
+
+  fun hasNext(): Boolean = index < size
+
+  fun next(): Morpheme {
+    if (index >= size) {
+      throw NoSuchElementException()
+    }
+    val i = index++
+    val c = compact ?: return list!![i]
+    if (size == 1) {
+      return c
+    }
+    return c.splitUnit(mode, i, unit).also { unit = it }
+  }
+}
@@ -21,13 +21,14 @@ import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Supplier;
 
 import com.worksap.nlp.elasticsearch.sudachi.plugin.ReloadableDictionary;
 import com.worksap.nlp.lucene.sudachi.ja.util.Stopwords;
 import com.worksap.nlp.elasticsearch.sudachi.plugin.AnalysisCache;
+import com.worksap.nlp.elasticsearch.sudachi.plugin.ParallelAnalysisPool;
 import com.worksap.nlp.lucene.sudachi.ja.util.Stoptags;
 import com.worksap.nlp.sudachi.PartialPOS;
-import com.worksap.nlp.sudachi.PosMatcher;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.analysis.*;
@@ -48,20 +49,43 @@ public class SudachiAnalyzer extends StopwordAnalyzerBase {
     private final SplitMode mode;
     private final List<PartialPOS> stoptags;
 
-    private final ReloadableDictionary dictionary;
+    private final Supplier<ReloadableDictionary> dictionary;
 
     private final AnalysisCache cache;
 
     private final boolean discardPunctuation;
 
+    private final int maxChunkLength;
+
+    private final ParallelAnalysisPool pool;
+
     public SudachiAnalyzer(ReloadableDictionary dictionary, AnalysisCache cache, boolean discardPunctuation,
             SplitMode mode, CharArraySet stopwords, List<PartialPOS> stoptags) {
+        this(dictionary, cache, discardPunctuation, mode, stopwords, stoptags,
+                NonCachedAnalysis.DEFAULT_MAX_CHUNK_LENGTH, null);
+    }
+
+    public SudachiAnalyzer(ReloadableDictionary dictionary, AnalysisCache cache, boolean discardPunctuation,
+            SplitMode mode, CharArraySet stopwords, List<PartialPOS> stoptags, int maxChunkLength,
+            ParallelAnalysisPool pool) {
+        this(() -> dictionary, cache, discardPunctuation, mode, stopwords, stoptags, maxChunkLength, pool);
+    }
+
+    /**
+     * Create an analyzer whose dictionary is resolved when token streams are created, so the
+     * dictionary can be loaded in the background.
+     */
+    public SudachiAnalyzer(Supplier<ReloadableDictionary> dictionary, AnalysisCache cache, boolean discardPunctuation,
+            SplitMode mode, CharArraySet stopwords, List<PartialPOS> stoptags, int maxChunkLength,
+            ParallelAnalysisPool pool) {
         super(stopwords);
         this.mode = mode;
         this.stoptags = stoptags;
         this.dictionary = dictionary;
         this.cache = cache;
         this.discardPunctuation = discardPunctuation;
+        this.maxChunkLength = maxChunkLength;
+        this.pool = pool;
     }
 
     public static CharArraySet getDefaultStopSet() {
@@ -98,12 +122,15 @@ public class SudachiAnalyzer extends StopwordAnalyzerBase {
     @Override
     protected TokenStreamComponents createComponents(String fieldName) {
         logger.debug("creating Sudachi token stream with mode={} for field={}", mode, fieldName);
-        CachingTokenizer it = new CachingTokenizer(dictionary.newTokenizer(), mode, cache);
-        Tokenizer tokenizer = new SudachiTokenizer(it, discardPunctuation, AttributeFactory.DEFAULT_ATTRIBUTE_FACTORY);
+        ReloadableDictionary dictionary = this.dictionary.get();
+        CachingTokenizer it = new CachingTokenizer(dictionary.newTokenizer(), mode, cache, maxChunkLength, pool);
+        SudachiTokenizer tokenizer = new SudachiTokenizer(it, discardPunctuation,
+                AttributeFactory.DEFAULT_ATTRIBUTE_FACTORY);
+        tokenizer.setStatsLabel(fieldName);
         TokenStream stream = tokenizer;
         stream = new SudachiBaseFormFilter(stream);
         if (!stoptags.isEmpty()) {
-            ReloadAware<PosMatcher> matcher = dictionary.reloadable(dic -> dic.posMatcher(stoptags));
+            ReloadAware<PosIdMatcher> matcher = dictionary.reloadable(dic -> PosIdMatcher.of(dic, stoptags));
             stream = new SudachiPartOfSpeechStopFilter(stream, matcher);
         }
         stream = new StopFilter(stream, stopwords);
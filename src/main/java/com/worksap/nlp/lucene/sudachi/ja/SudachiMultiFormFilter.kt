@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.lucene.sudachi.ja
+
+import com.worksap.nlp.lucene.aliases.TokenFilterFactory
+import com.worksap.nlp.lucene.sudachi.ja.attributes.MorphemeAttribute
+import com.worksap.nlp.lucene.sudachi.ja.attributes.MorphemeConsumerAttribute
+import com.worksap.nlp.lucene.sudachi.ja.util.Instrumentation
+import com.worksap.nlp.lucene.sudachi.ja.util.Romanizer
+import com.worksap.nlp.sudachi.Morpheme
+import org.apache.lucene.analysis.TokenFilter
+import org.apache.lucene.analysis.TokenStream
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute
+import org.apache.lucene.analysis.tokenattributes.KeywordAttribute
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute
+import org.apache.lucene.util.AttributeSource
+
+/**
+ * Emits several forms of each morpheme as tokens stacked at the same position.
+ *
+ * This allows indexing surface, normalized, base and reading forms in a single field, so text is
+ * analyzed once instead of once per form. Each form can have a prefix, which keeps terms of
+ * different forms apart in the index, and a token type. A form which produces the same term as a
+ * previous form of the morpheme is not emitted again.
+ *
+ * Tokens marked as keywords and tokens without a morpheme are passed as is.
+ */
+class SudachiMultiFormFilter(input: TokenStream, forms: List<Form>) : TokenFilter(input) {
+  enum class Kind {
+    SURFACE,
+    NORMALIZED,
+    BASE,
+    READING,
+    ROMAJI,
+  }
+
+  /** Form of morphemes to emit, with the [prefix] of its terms and its token [type] */
+  data class Form(
+      val kind: Kind,
+      val prefix: String = "",
+      val type: String = kind.name.lowercase()
+  )
+
+  private val forms = forms.toTypedArray()
+  private val morphemeAtt = existingAttribute<MorphemeAttribute>()
+  private val keywordAtt = addAttribute<KeywordAttribute>()
+  private val termAtt = addAttribute<CharTermAttribute>()
+  private val typeAtt = addAttribute<TypeAttribute>()
+  private val posIncAtt = addAttribute<PositionIncrementAttribute>()
+  private val consumer = addAttribute<MorphemeConsumerAttribute> { it.currentConsumer = this }
+
+  // terms of the current morpheme, forms[order[i]] produced values[i]
+  private val values = Array(this.forms.size) { StringBuilder() }
+  private val order = IntArray(this.forms.size)
+  private var count = 0
+  private var next = 0
+  private var state: AttributeSource.State? = null
+
+  init {
+    require(forms.isNotEmpty()) { "at least one form is required" }
+  }
+
+  override fun incrementToken(): Boolean {
+    if (next < count) {
+      val start = Instrumentation.start()
+      restoreState(state)
+      emit(next++)
+      posIncAtt.positionIncrement = 0
+      Instrumentation.record(Instrumentation.Probe.FIELD_FILTER, start)
+      return true
+    }
+    if (!input.incrementToken()) {
+      return false
+    }
+    // measure only this filter, not the upstream
+    val start = Instrumentation.start()
+    val m = morphemeAtt.morpheme
+    if (m == null || keywordAtt.isKeyword) {
+      if (m != null && consumer.shouldConsume(this)) {
+        termAtt.setEmpty().appendSurface(m)
+      }
+      count = 0
+      next = 0
+      Instrumentation.record(Instrumentation.Probe.FIELD_FILTER, start)
+      return true
+    }
+    collect(m)
+    if (count > 1) {
+      state = captureState()
+    }
+    emit(0)
+    next = 1
+    Instrumentation.record(Instrumentation.Probe.FIELD_FILTER, start)
+    return true
+  }
+
+  private fun collect(m: Morpheme) {
+    // when another filter consumes morphemes, the current term is the surface it produced
+    val ownsTerm = consumer.shouldConsume(this)
+    count = 0
+    for ((i, form) in forms.withIndex()) {
+      val value = values[count]
+      value.setLength(0)
+      value.append(form.prefix)
+      when (form.kind) {
+        Kind.SURFACE ->
+            if (ownsTerm) value.append(termAtt.setEmpty().appendSurface(m))
+            else value.append(termAtt)
+        Kind.NORMALIZED -> value.append(m.normalizedForm())
+        Kind.BASE -> value.append(m.dictionaryForm())
+        Kind.READING -> value.append(m.readingForm() ?: continue)
+        Kind.ROMAJI -> Romanizer.romanize(m.readingForm() ?: continue, value)
+      }
+      if (!isDuplicate(value)) {
+        order[count++] = i
+      }
+    }
+  }
+
+  private fun isDuplicate(value: StringBuilder): Boolean {
+    for (i in 0 until count) {
+      if (values[i].contentEquals(value)) {
+        return true
+      }
+    }
+    return false
+  }
+
+  private fun emit(index: Int) {
+    termAtt.setEmpty().append(values[index])
+    typeAtt.setType(forms[order[index]].type)
+  }
+
+  override fun reset() {
+    super.reset()
+    count = 0
+    next = 0
+    state = null
+  }
+}
+
+class SudachiMultiFormFilterFactory(args: MutableMap<String, String>) : TokenFilterFactory(args) {
+  private val forms = run {
+    val kinds = get(args, FORMS_PARAM, DEFAULT_FORMS).split(',').map { parseKind(it.trim()) }
+    kinds.map { kind ->
+      val name = kind.name.lowercase()
+      SudachiMultiFormFilter.Form(
+          kind, args.remove("prefixes.$name") ?: "", args.remove("types.$name") ?: name)
+    }
+  }
+
+  init {
+    require(args.isEmpty()) { "Unknown parameters: $args" }
+  }
+
+  override fun create(input: TokenStream): TokenStream {
+    return SudachiMultiFormFilter(input, forms)
+  }
+
+  companion object {
+    private const val FORMS_PARAM = "forms"
+    const val DEFAULT_FORMS = "surface,normalized,base,reading"
+
+    /** Parse a form name, e.g. `normalized` */
+    @JvmStatic
+    fun parseKind(name: String): SudachiMultiFormFilter.Kind {
+      return SudachiMultiFormFilter.Kind.values().find { it.name.equals(name, true) }
+          ?: throw IllegalArgumentException(
+              "unknown form $name, accepted values: ${SudachiMultiFormFilter.Kind.values().joinToString { it.name.lowercase() }}")
+    }
+  }
+}
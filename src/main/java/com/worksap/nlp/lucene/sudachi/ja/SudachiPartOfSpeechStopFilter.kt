@@ -17,15 +17,27 @@
 package com.worksap.nlp.lucene.sudachi.ja
 
 import com.worksap.nlp.lucene.sudachi.ja.attributes.MorphemeAttribute
-import com.worksap.nlp.sudachi.PosMatcher
 import org.apache.lucene.analysis.FilteringTokenFilter
 import org.apache.lucene.analysis.TokenStream
 
 /** Removes tokens that match a set of part-of-speech tags. */
 class SudachiPartOfSpeechStopFilter(
     input: TokenStream?,
-    private val matcher: ReloadAware<PosMatcher>
+    private val matcher: ReloadAware<PosIdMatcher>
 ) : FilteringTokenFilter(input) {
+  /** Filter with a fixed [matcher], which is not updated when the dictionary is reloaded */
+  constructor(input: TokenStream?, matcher: PosIdMatcher) : this(input, Fixed(matcher))
+
+  private class Fixed(private val matcher: PosIdMatcher) : ReloadAware<PosIdMatcher> {
+    override fun maybeReload(newDictionary: CurrentDictionary?): PosIdMatcher = matcher
+
+    override fun get(): PosIdMatcher = matcher
+
+    override fun dictionary(): CurrentDictionary {
+      throw UnsupportedOperationException("matcher is not bound to a dictionary")
+    }
+  }
+
   private val morpheme = addAttribute<MorphemeAttribute>()
 
   override fun reset() {
@@ -56,7 +56,7 @@ class SudachiPartOfSpeechStopFilterFactory(args: MutableMap<String, String>) :
           stream.getAttribute<SudachiAttribute>()
               ?: throw IllegalArgumentException(
                   "Sudachi Tokenizer was not present in the filter chain")
-      val matcher = sudachi.dictionary.reloadable { it.posMatcher(stopTags) }
+      val matcher = sudachi.dictionary.reloadable { PosIdMatcher.of(it, stopTags) }
       SudachiPartOfSpeechStopFilter(stream, matcher)
     } else {
       stream
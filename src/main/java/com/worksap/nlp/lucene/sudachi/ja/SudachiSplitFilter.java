@@ -17,10 +17,9 @@
 package com.worksap.nlp.lucene.sudachi.ja;
 
 import java.io.IOException;
-import java.util.List;
-import java.util.ListIterator;
 
 import com.worksap.nlp.lucene.sudachi.ja.attributes.*;
+import com.worksap.nlp.lucene.sudachi.ja.util.Instrumentation;
 import com.worksap.nlp.lucene.sudachi.ja.util.Strings;
 import com.worksap.nlp.sudachi.Morpheme;
 
@@ -87,7 +86,7 @@ public class SudachiSplitFilter extends TokenFilter {
     private final PositionLengthAttribute posLengthAtt;
     private final MorphemeAttribute morphemeAtt;
     private final MorphemeConsumerAttribute consumerAttribute;
-    private ListIterator<Morpheme> aUnitIterator;
+    private final SubUnits subUnits = new SubUnits();
     private final OovChars oovChars = new OovChars();
 
     private int aUnitOffset = 0;
@@ -108,48 +107,60 @@ public class SudachiSplitFilter extends TokenFilter {
 
     @Override
     public final boolean incrementToken() throws IOException {
+        long start = Instrumentation.start();
         if (oovChars.hasNext()) {
             clearAttributes();
             setOOVAttribute();
+            Instrumentation.record(Instrumentation.Probe.SPLIT_FILTER, start);
             return true;
         }
-        if (aUnitIterator != null && aUnitIterator.hasNext()) {
+        if (subUnits.hasNext()) {
             clearAttributes();
-            setAUnitAttribute(aUnitIterator.next());
+            setAUnitAttribute(subUnits.next());
+            Instrumentation.record(Instrumentation.Probe.SPLIT_FILTER, start);
             return true;
         }
 
         if (input.incrementToken()) {
+            // measure only this filter, not the upstream
+            start = Instrumentation.start();
             int length = 0;
             Morpheme m = morphemeAtt.getMorpheme();
             if (m == null) {
                 return true;
             }
             if (consumerAttribute.shouldConsume(this)) {
-                termAtt.append(m.surface());
+                AttributesKt.appendSurface(termAtt, m);
             }
             if (mode == Mode.EXTENDED && m.isOOV() && (length = Strings.codepointCount(termAtt)) > 1) {
                 oovChars.setOov(offsetAtt.startOffset(), termAtt.buffer(), termAtt.length());
                 posLengthAtt.setPositionLength(length);
             } else if (splitMode != Tokenizer.SplitMode.C) {
-                List<Morpheme> subUnits = m.split(splitMode);
-                if (subUnits.size() > 1) {
-                    aUnitIterator = subUnits.listIterator();
+                subUnits.reset(m, splitMode);
+                if (subUnits.getSize() > 1) {
                     aUnitOffset = offsetAtt.startOffset();
-                    posLengthAtt.setPositionLength(subUnits.size());
+                    posLengthAtt.setPositionLength(subUnits.getSize());
                 } else {
+                    subUnits.clear();
                     posLengthAtt.setPositionLength(1);
                 }
             }
+            Instrumentation.record(Instrumentation.Probe.SPLIT_FILTER, start);
             return true;
         } else {
             return false;
         }
     }
 
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        subUnits.clear();
+    }
+
     private void setAUnitAttribute(Morpheme morpheme) {
         posLengthAtt.setPositionLength(1);
-        if (aUnitIterator.previousIndex() == 0) {
+        if (subUnits.getIndex() == 1) {
             posIncAtt.setPositionIncrement(0);
         } else {
             posIncAtt.setPositionIncrement(1);
@@ -159,7 +170,7 @@ public class SudachiSplitFilter extends TokenFilter {
         aUnitOffset += length;
         morphemeAtt.setMorpheme(morpheme);
         if (consumerAttribute.shouldConsume(this)) {
-            termAtt.append(morpheme.surface());
+            AttributesKt.appendSurface(termAtt, morpheme);
         }
     }
 
@@ -20,6 +20,9 @@ import com.worksap.nlp.lucene.sudachi.ja.attributes.MorphemeAttribute
 import com.worksap.nlp.lucene.sudachi.ja.attributes.MorphemeConsumerAttribute
 import com.worksap.nlp.lucene.sudachi.ja.attributes.SudachiAttribute
 import com.worksap.nlp.lucene.sudachi.ja.attributes.SudachiAttributeFactory
+import com.worksap.nlp.lucene.sudachi.ja.util.Instrumentation
+import com.worksap.nlp.sudachi.Dictionary
+import com.worksap.nlp.sudachi.Morpheme
 import org.apache.lucene.analysis.Tokenizer
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute
@@ -43,35 +46,64 @@ class SudachiTokenizer(
     addAttribute<SudachiAttribute> { it.dictionary = tokenizer.dictionary }
   }
 
+  // matcher of the dictionary which produced the current morphemes, word ids belong to it
+  private var punctuation: PunctuationMatcher? = null
+  private var punctuationDictionary: Dictionary? = null
+
   private var iterator: MorphemeIterator = MorphemeIterator.EMPTY
+  private var tokens = 0
+
+  /** Name of the field or of the tokenizer, used for reporting token counts */
+  var statsLabel: String = "sudachi_tokenizer"
 
   override fun reset() {
     super.reset()
-    var iter = tokenizer.tokenize(input)
+    iterator = tokenizer.tokenize(input)
     if (discardPunctuation) {
-      iter = NonPunctuationMorphemes(iter)
+      val dictionary = tokenizer.lastDictionary
+      if (dictionary !== punctuationDictionary) {
+        punctuation = dictionary?.let(PunctuationMatcher::of)
+        punctuationDictionary = dictionary
+      }
     }
-    iterator = iter
+    tokens = 0
   }
 
   override fun incrementToken(): Boolean {
     clearAttributes()
-    val m = iterator.next() ?: return false
+    val m = nextMorpheme() ?: return false
+    tokens += 1
     morphemeAtt.morpheme = m
     posLenAtt.positionLength = 1
     posIncAtt.positionIncrement = 1
     val baseOffset = iterator.baseOffset
     offsetAtt.setOffset(correctOffset(baseOffset + m.begin()), correctOffset(baseOffset + m.end()))
     if (consumer.shouldConsume(this)) {
-      termAtt.append(m.surface())
+      termAtt.appendSurface(m)
     }
     return true
   }
 
+  /** Next morpheme, skipping punctuation if it is discarded */
+  private fun nextMorpheme(): Morpheme? {
+    val iterator = iterator
+    val punctuation = punctuation ?: return iterator.next()
+    while (true) {
+      val m = iterator.next() ?: return null
+      if (!punctuation.test(m)) {
+        return m
+      }
+    }
+  }
+
   override fun end() {
     super.end()
-    val lastOffset = correctOffset(iterator.baseOffset)
+    val inputLength = iterator.baseOffset
+    val lastOffset = correctOffset(inputLength)
     offsetAtt.setOffset(lastOffset, lastOffset)
     iterator = MorphemeIterator.EMPTY
+    tokenizer.release(inputLength)
+    Instrumentation.countTokens(statsLabel, tokens)
+    tokens = 0
   }
 }
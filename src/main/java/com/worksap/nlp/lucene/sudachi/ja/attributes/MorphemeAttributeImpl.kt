@@ -16,6 +16,7 @@
 
 package com.worksap.nlp.lucene.sudachi.ja.attributes
 
+import com.worksap.nlp.lucene.sudachi.ja.CompactMorpheme
 import com.worksap.nlp.lucene.sudachi.ja.reflect
 import com.worksap.nlp.sudachi.Morpheme
 import org.apache.lucene.util.AttributeImpl
@@ -33,7 +34,14 @@ class MorphemeAttributeImpl : AttributeImpl(), MorphemeAttribute {
   }
 
   override fun copyTo(target: AttributeImpl?) {
-    (target as? MorphemeAttributeImpl)?.let { it.morpheme = target.morpheme }
+    (target as? MorphemeAttributeImpl)?.let { it.morpheme = morpheme }
+  }
+
+  override fun clone(): AttributeImpl {
+    val result = super.clone() as MorphemeAttributeImpl
+    // views of cached analyses are re-pointed to the next morpheme, captured states keep their own
+    result.morpheme = (morpheme as? CompactMorpheme)?.detached() ?: morpheme
+    return result
   }
 
   override fun getMorpheme(): Morpheme? {
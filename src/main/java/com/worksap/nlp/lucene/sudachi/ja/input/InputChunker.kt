@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.lucene.sudachi.ja.input
+
+import com.worksap.nlp.lucene.sudachi.ja.util.Strings
+import java.io.Reader
+
+/**
+ * Splits input into chunks of at most [maxLength] characters, reading only as much as needed for
+ * the next chunk.
+ *
+ * If the input does not fit into a chunk, the chunk is cut after the last sentence end in its
+ * second half. If there is no sentence end, it is cut after the last whitespace or punctuation, or
+ * at the last change of the script. Only if none of them is present the chunk is cut at [maxLength]
+ * , never inside a surrogate pair.
+ */
+class InputChunker(private val input: Reader, maxLength: Int) {
+  init {
+    require(maxLength >= 2) { "maximum chunk length must be at least 2, was $maxLength" }
+  }
+
+  private val buffer = CharArray(maxLength)
+  private var length = 0
+  private var eof = false
+
+  /** Offset of the last returned chunk in the input */
+  var offset = 0
+    private set
+
+  /** Offset of the end of the last returned chunk in the input */
+  var end = 0
+    private set
+
+  /** `true` if all the input was returned in chunks */
+  val exhausted: Boolean
+    get() = eof && length == 0
+
+  /** @return next chunk of the input or `null` if the input was fully consumed */
+  fun next(): String? {
+    fill()
+    if (length == 0) {
+      return null
+    }
+    val cut = if (eof) length else cutPosition()
+    val chunk = String(buffer, 0, cut)
+    System.arraycopy(buffer, cut, buffer, 0, length - cut)
+    length -= cut
+    offset = end
+    end += cut
+    return chunk
+  }
+
+  private fun fill() {
+    while (!eof && length < buffer.size) {
+      val nread = input.read(buffer, length, buffer.size - length)
+      if (nread < 0) {
+        eof = true
+      } else {
+        length += nread
+      }
+    }
+  }
+
+  private fun cutPosition(): Int {
+    val min = length / 2
+    for (i in length - 1 downTo min) {
+      if (isSentenceEnd(buffer[i])) {
+        return i + 1
+      }
+    }
+    for (i in length - 1 downTo min) {
+      val c = buffer[i]
+      if (!Character.isSurrogate(c) && Strings.isPunctuation(c.code)) {
+        return i + 1
+      }
+    }
+    // characters without a script (e.g. `ー`) stay with the preceding ones
+    var next: Character.UnicodeScript? = null
+    var nextStart = length
+    var i = length
+    while (i > 0 && nextStart >= min) {
+      val cp = Character.codePointBefore(buffer, i)
+      val script = scriptOf(cp)
+      if (script != null) {
+        if (next != null && script != next) {
+          return nextStart
+        }
+        next = script
+        nextStart = i - Character.charCount(cp)
+      }
+      i -= Character.charCount(cp)
+    }
+    return if (Character.isHighSurrogate(buffer[length - 1])) length - 1 else length
+  }
+
+  companion object {
+    private fun isSentenceEnd(c: Char): Boolean {
+      return when (c) {
+        '\n',
+        '。',
+        '！',
+        '？',
+        '!',
+        '?' -> true
+        else -> false
+      }
+    }
+
+    /** Script of the codepoint, or `null` if it is shared between scripts (e.g. `ー` or digits) */
+    private fun scriptOf(codepoint: Int): Character.UnicodeScript? {
+      val script = Character.UnicodeScript.of(codepoint)
+      if (script == Character.UnicodeScript.COMMON || script == Character.UnicodeScript.INHERITED) {
+        return null
+      }
+      return script
+    }
+  }
+}
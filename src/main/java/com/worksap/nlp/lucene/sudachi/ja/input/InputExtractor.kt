@@ -35,6 +35,13 @@ interface InputExtractor {
   fun extract(input: Reader): ExtractionResult
   fun canExtract(input: Reader): Boolean
 
+  /**
+   * String which [input] reads, if it is available without copying it or consuming the reader.
+   *
+   * Unlike [extract], strings of any length are returned.
+   */
+  fun instance(input: Reader): String? = null
+
   companion object {
     @JvmStatic
     fun make(settings: Settings): InputExtractor {
@@ -42,7 +49,9 @@ interface InputExtractor {
       return if (InputExtractorBootstrap.ZERO_COPY === NoopInputExtractor.INSTANCE) {
         CopyingInputExtractor(maxSize)
       } else {
-        ChainedExtractor(InputExtractorBootstrap.ZERO_COPY, CopyingInputExtractor(maxSize))
+        ChainedExtractor(
+            SizeLimitedExtractor(InputExtractorBootstrap.ZERO_COPY, maxSize),
+            CopyingInputExtractor(maxSize))
       }
     }
   }
@@ -111,6 +120,10 @@ class ChainedExtractor(private val first: InputExtractor, private val fallback:
     return first.canExtract(input) || fallback.canExtract(input)
   }
 
+  override fun instance(input: Reader): String? {
+    return first.instance(input) ?: fallback.instance(input)
+  }
+
   private fun describe(builder: StringBuilder) {
     if (first is ChainedExtractor) {
       first.describe(builder)
@@ -132,3 +145,24 @@ class ChainedExtractor(private val first: InputExtractor, private val fallback:
     return bldr.toString()
   }
 }
+
+/**
+ * Extractor which leaves strings longer than [maxSize] to another one.
+ *
+ * [extractor] must provide [instance]s of the inputs it extracts, their length is checked.
+ */
+class SizeLimitedExtractor(private val extractor: InputExtractor, private val maxSize: Int) :
+    InputExtractor {
+  override fun extract(input: Reader): ExtractionResult = extractor.extract(input)
+
+  override fun canExtract(input: Reader): Boolean {
+    val instance = extractor.instance(input) ?: return false
+    return instance.length <= maxSize && extractor.canExtract(input)
+  }
+
+  override fun instance(input: Reader): String? = extractor.instance(input)
+
+  override fun toString(): String {
+    return "$extractor(maxSize=$maxSize)"
+  }
+}
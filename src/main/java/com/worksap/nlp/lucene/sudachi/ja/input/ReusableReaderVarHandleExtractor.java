@@ -17,6 +17,7 @@
 package com.worksap.nlp.lucene.sudachi.ja.input;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.Reader;
 import java.lang.invoke.MethodHandles;
@@ -53,6 +54,15 @@ public class ReusableReaderVarHandleExtractor implements InputExtractor {
         return TARGET_CLASS.isInstance(input);
     }
 
+    @Nullable
+    @Override
+    public String instance(@NotNull Reader input) {
+        if (TARGET_CLASS.isInstance(input)) {
+            return (String) S_FIELD.get(input);
+        }
+        return null;
+    }
+
     private ReusableReaderVarHandleExtractor() {
     }
 }
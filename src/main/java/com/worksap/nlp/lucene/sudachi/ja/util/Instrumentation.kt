@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.lucene.sudachi.ja.util
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Optional latency recording for the hot paths of the analysis chain.
+ *
+ * Disabled by default. When it is disabled, probes cost a single read of a static field. Latencies
+ * are recorded into per-thread histograms without any synchronization and are merged on read.
+ *
+ * Usage:
+ * ```
+ * val start = Instrumentation.start()
+ * ... // measured code
+ * Instrumentation.record(Instrumentation.Probe.TOKENIZE, start)
+ * ```
+ */
+object Instrumentation {
+  /** Instrumented places of the analysis chain */
+  enum class Probe {
+    /** Obtaining analysis results in tokenizer, including cache lookups */
+    TOKENIZE,
+    /** Analysis of a reader which is not cached */
+    ANALYZE,
+    /** Processing of a token in [com.worksap.nlp.lucene.sudachi.ja.SudachiSplitFilter] */
+    SPLIT_FILTER,
+    /** Processing of a token in [com.worksap.nlp.lucene.sudachi.ja.MorphemeFieldFilter] */
+    FIELD_FILTER,
+  }
+
+  /** Value of [start] when recording is disabled */
+  const val NOT_STARTED = Long.MIN_VALUE
+
+  /** Whether latencies are recorded, set from the node settings on startup */
+  @JvmField @Volatile var enabled = false
+
+  private class Recorder {
+    val histograms = Array(Probe.values().size) { LatencyHistogram() }
+  }
+
+  private val recorders = CopyOnWriteArrayList<Recorder>()
+  private val recorder = ThreadLocal.withInitial { Recorder().also { recorders.add(it) } }
+  private val tokens = ConcurrentHashMap<String, LongAdder>()
+
+  /** Returns a start timestamp for [record], or [NOT_STARTED] when recording is disabled */
+  @JvmStatic
+  fun start(): Long {
+    return if (enabled) System.nanoTime() else NOT_STARTED
+  }
+
+  /** Record time elapsed since [start] for the probe */
+  @JvmStatic
+  fun record(probe: Probe, start: Long) {
+    if (start == NOT_STARTED) {
+      return
+    }
+    val elapsed = System.nanoTime() - start
+    recorder.get().histograms[probe.ordinal].record(elapsed)
+  }
+
+  /** Add to the number of tokens produced for [label], a field or a tokenizer name */
+  @JvmStatic
+  fun countTokens(label: String, count: Int) {
+    if (!enabled || count == 0) {
+      return
+    }
+    tokens.computeIfAbsent(label) { LongAdder() }.add(count.toLong())
+  }
+
+  /** Merged histograms of all threads */
+  fun latencies(): Map<Probe, LatencyHistogram.Snapshot> {
+    val result = Probe.values().associateWith { LatencyHistogram.Snapshot() }
+    for (r in recorders) {
+      for (p in Probe.values()) {
+        r.histograms[p.ordinal].addTo(result.getValue(p))
+      }
+    }
+    return result
+  }
+
+  /** Number of produced tokens by label */
+  fun tokenCounts(): Map<String, Long> = tokens.mapValues { it.value.sum() }
+
+  /** Representation for REST responses */
+  fun report(): Map<String, Any> {
+    return mapOf(
+        "enabled" to enabled,
+        "latency" to latencies().entries.associate { (k, v) -> k.name.lowercase() to v.toMap() },
+        "tokens" to tokenCounts().toSortedMap(),
+    )
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.lucene.sudachi.ja.util
+
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Histogram of latencies in nanoseconds with log-linear buckets.
+ *
+ * Each power of two is split into [SUB_BUCKETS] buckets, so recorded values are precise up to
+ * 12.5%. The histogram can be written by a single thread only, but it can be read by any thread at
+ * any time.
+ */
+class LatencyHistogram {
+  private val counts = AtomicLongArray(BUCKETS + 1)
+
+  /** Record a value, must be called only by the owning thread */
+  fun record(nanos: Long) {
+    val bucket = bucketOf(nanos.coerceAtLeast(0))
+    // single writer: lazySet is enough for readers to see the values eventually
+    counts.lazySet(bucket, counts.get(bucket) + 1)
+    counts.lazySet(BUCKETS, counts.get(BUCKETS) + nanos)
+  }
+
+  /** Add values of this histogram to [snapshot] */
+  fun addTo(snapshot: Snapshot) {
+    for (i in 0 until BUCKETS) {
+      snapshot.counts[i] += counts.get(i)
+    }
+    snapshot.sum += counts.get(BUCKETS)
+  }
+
+  /** Merged values of histograms, not thread-safe */
+  class Snapshot {
+    internal val counts = LongArray(BUCKETS)
+    internal var sum = 0L
+
+    val count: Long
+      get() = counts.sum()
+
+    val mean: Long
+      get() = count.let { if (it == 0L) 0 else sum / it }
+
+    /** Upper bound of the bucket which contains the given quantile, 0 if there are no values */
+    fun percentile(quantile: Double): Long {
+      val total = count
+      if (total == 0L) {
+        return 0
+      }
+      val rank = Math.ceil(total * quantile).toLong().coerceIn(1, total)
+      var seen = 0L
+      for (i in 0 until BUCKETS) {
+        seen += counts[i]
+        if (seen >= rank) {
+          return upperBound(i)
+        }
+      }
+      return upperBound(BUCKETS - 1)
+    }
+
+    val max: Long
+      get() = percentile(1.0)
+
+    fun toMap(): Map<String, Any> {
+      return mapOf(
+          "count" to count,
+          "mean_in_nanos" to mean,
+          "p50_in_nanos" to percentile(0.5),
+          "p90_in_nanos" to percentile(0.9),
+          "p99_in_nanos" to percentile(0.99),
+          "p999_in_nanos" to percentile(0.999),
+          "max_in_nanos" to max,
+      )
+    }
+  }
+
+  companion object {
+    private const val SUB_BUCKET_BITS = 3
+    private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+    private const val BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS
+
+    internal fun bucketOf(value: Long): Int {
+      if (value < SUB_BUCKETS) {
+        return value.toInt()
+      }
+      val exponent = 63 - java.lang.Long.numberOfLeadingZeros(value)
+      val shift = exponent - SUB_BUCKET_BITS
+      val mantissa = (value ushr shift).toInt() and (SUB_BUCKETS - 1)
+      return (shift + 1) * SUB_BUCKETS + mantissa
+    }
+
+    internal fun lowerBound(bucket: Int): Long {
+      if (bucket < SUB_BUCKETS) {
+        return bucket.toLong()
+      }
+      val shift = bucket / SUB_BUCKETS - 1
+      val mantissa = bucket % SUB_BUCKETS
+      return (SUB_BUCKETS + mantissa).toLong() shl shift
+    }
+
+    internal fun upperBound(bucket: Int): Long {
+      if (bucket == BUCKETS - 1) {
+        return Long.MAX_VALUE
+      }
+      return lowerBound(bucket + 1) - 1
+    }
+  }
+}
@@ -42,6 +42,10 @@ public class Strings {
         return true;
     }
 
+    public static boolean isPunctuation(int codepoint) {
+        return hasType(codepoint, PUNCTUATION_MASK);
+    }
+
     public static boolean hasType(int codepoint, long typeMask) {
         int type = Character.getType(codepoint);
         long mask = 1L << type;
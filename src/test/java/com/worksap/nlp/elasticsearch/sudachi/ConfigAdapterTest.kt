@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi
+
+import java.nio.file.Paths
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+
+class ConfigAdapterTest {
+  private val base = Paths.get("config", "sudachi").toAbsolutePath()
+
+  @Test
+  fun cacheWarmupIsResolvedInResources() {
+    assertEquals(
+        base.resolve("warmup/queries.txt"),
+        ConfigAdapter.cacheWarmupPath(base, "warmup/../warmup/./queries.txt"))
+  }
+
+  @Test
+  fun cacheWarmupOutsideOfResourcesIsRejected() {
+    assertFailsWith<IllegalArgumentException> {
+      ConfigAdapter.cacheWarmupPath(base, "../elasticsearch.yml")
+    }
+    assertFailsWith<IllegalArgumentException> {
+      ConfigAdapter.cacheWarmupPath(base, base.root.resolve("etc/passwd").toString())
+    }
+    assertFailsWith<IllegalArgumentException> {
+      ConfigAdapter.cacheWarmupPath(base, "warmup/../../sudachi-other/queries.txt")
+    }
+  }
+}
@@ -16,6 +16,10 @@
 
 package com.worksap.nlp.elasticsearch.sudachi.index
 
+import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute
 import org.junit.Rule
 import org.junit.Test
 
@@ -359,4 +363,88 @@ class CustomAnalyzerTest : SearchEngineTestBase {
     val basic = analyzers.get("sudachi_test")
     basic.assertTerms("東京にふく", "東京", "ふく")
   }
+
+  @Test
+  fun multiForm() {
+    val settings =
+        """
+      {
+        "index.analysis": {
+          "analyzer": {
+            "sudachi_forms": {
+              "type": "custom",
+              "tokenizer": "sudachi_tokenizer",
+              "filter": ["forms"]
+            }
+          },
+          "tokenizer": {
+            "sudachi_tokenizer": {
+              "type": "sudachi_tokenizer",
+              "split_mode": "C"
+            }
+          },
+          "filter": {
+            "forms": {
+              "type": "sudachi_multi_form",
+              "forms": ["surface", "normalized"],
+              "prefixes": { "normalized": "n:" }
+            }
+          }
+        }
+      }
+    """.jsonSettings()
+    val analyzers = engine.indexAnalyzers(settings)
+    val forms = analyzers.get("sudachi_forms")
+    forms.assertTerms("東京に行った", "東京", "n:東京", "に", "n:に", "行っ", "n:行く", "た", "n:た")
+  }
+
+  @Test
+  fun multiFormPrefixesAndTypes() {
+    val settings =
+        """
+      {
+        "index.analysis": {
+          "analyzer": {
+            "sudachi_forms": {
+              "type": "custom",
+              "tokenizer": "sudachi_tokenizer",
+              "filter": ["forms"]
+            }
+          },
+          "tokenizer": {
+            "sudachi_tokenizer": {
+              "type": "sudachi_tokenizer",
+              "split_mode": "C"
+            }
+          },
+          "filter": {
+            "forms": {
+              "type": "sudachi_multi_form",
+              "forms": ["surface", "base", "reading"],
+              "prefixes": { "base": "b:", "reading": "r:" },
+              "types": { "surface": "word", "base": "lemma" }
+            }
+          }
+        }
+      }
+    """.jsonSettings()
+    val analyzers = engine.indexAnalyzers(settings)
+    val forms = assertNotNull(analyzers.get("sudachi_forms")).analyzer()
+    val terms = ArrayList<String>()
+    val types = ArrayList<String>()
+    forms.tokenStream("text", "東京に行った").use { stream ->
+      val term = stream.getAttribute(CharTermAttribute::class.java)
+      val type = stream.getAttribute(TypeAttribute::class.java)
+      stream.reset()
+      while (stream.incrementToken()) {
+        terms.add(term.toString())
+        types.add(type.type())
+      }
+      stream.end()
+    }
+    assertEquals(
+        listOf("東京", "b:東京", "r:トウキョウ", "に", "b:に", "r:ニ", "行っ", "b:行く", "r:イッ", "た", "b:た", "r:タ"),
+        terms)
+    assertEquals(List(4) { listOf("word", "lemma", "reading") }.flatten(), types)
+  }
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import com.worksap.nlp.search.aliases.Settings
+import kotlin.math.abs
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+class AnalysisCacheServiceTest {
+  private fun size(value: String?): Long {
+    val builder = Settings.builder()
+    if (value != null) {
+      builder.put("cache-size", value)
+    }
+    return AnalysisCacheService.cacheSize(builder.build())
+  }
+
+  @Test
+  fun defaultSize() {
+    assertEquals(2 * 1024 * 1024L, size(null))
+  }
+
+  @Test
+  fun legacyUnits() {
+    assertEquals(64 * 64 * 1024L, size("64"))
+    assertEquals(0, size("0"))
+  }
+
+  @Test
+  fun byteSize() {
+    assertEquals(256 * 1024 * 1024L, size("256mb"))
+    assertEquals(512 * 1024L, size("512kb"))
+  }
+
+  @Test
+  fun heapRatio() {
+    val expected = Runtime.getRuntime().maxMemory() / 100
+    val actual = size("1%")
+    assertTrue(abs(expected - actual) <= expected / 100, "expected ~$expected, was $actual")
+  }
+
+  @Test
+  fun invalidSize() {
+    assertFailsWith<Exception> { size("lots") }
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import com.worksap.nlp.lucene.sudachi.ja.input.CopyingInputExtractor
+import com.worksap.nlp.search.aliases.Settings
+import com.worksap.nlp.test.InMemoryDictionary
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.TimeUnit
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+
+class CacheWarmupTest {
+  @JvmField @Rule val tmp = TemporaryFolder()
+
+  private val dic = InMemoryDictionary()
+
+  private fun file(vararg lines: String): Path {
+    val path = tmp.newFile().toPath()
+    Files.write(path, lines.toList())
+    return path
+  }
+
+  private fun cache(size: Long = 256 * 1024L) = AnalysisCache(size, CopyingInputExtractor(128))
+
+  @Test
+  fun fillsCache() {
+    val cache = cache()
+    CacheWarmup(10000).use { warmup ->
+      warmup.submit(cache, dic.dic, file("東京都", "", "東京都に行く", "東京都")).get(10, TimeUnit.SECONDS)
+    }
+    val stats = cache.stats()
+    assertEquals(2, stats.count)
+    assertEquals(2, stats.misses)
+    assertEquals(1, stats.hits)
+  }
+
+  @Test
+  fun canBeCancelled() {
+    val cache = cache()
+    val lines = Array(100) { "東京都$it" }
+    CacheWarmup(1).use { warmup ->
+      val future = warmup.submit(cache, dic.dic, file(*lines))
+      Thread.sleep(100)
+      future.cancel(true)
+      assertTrue(future.isCancelled)
+    }
+    assertTrue(cache.stats().misses < lines.size, "all inputs were analyzed")
+  }
+
+  @Test
+  fun missingFileIsIgnored() {
+    val cache = cache()
+    CacheWarmup(10000).use { warmup ->
+      warmup.submit(cache, dic.dic, tmp.root.toPath().resolve("missing.txt")).get()
+    }
+    assertEquals(0, cache.stats().misses)
+  }
+
+  @Test
+  fun serviceWarmsUpOncePerFile() {
+    AnalysisCacheService(Settings.EMPTY).use { service ->
+      val cache = cache()
+      val file = file("東京都")
+      assertNotNull(service.warmup("test", cache, dic.dic, file)).get(10, TimeUnit.SECONDS)
+      assertNull(service.warmup("test", cache, dic.dic, file))
+      assertEquals(1, cache.stats().misses)
+    }
+  }
+
+  @Test
+  fun serviceSkipsDisabledCache() {
+    AnalysisCacheService(Settings.EMPTY).use { service ->
+      assertNull(service.warmup("test", cache(0), dic.dic, file("東京都")))
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import com.worksap.nlp.sudachi.Config
+import com.worksap.nlp.sudachi.Tokenizer.SplitMode
+import com.worksap.nlp.test.InMemoryDictionary
+import com.worksap.nlp.test.TestDictionary
+import java.net.URL
+import java.nio.MappedByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.util.jar.JarEntry
+import java.util.jar.JarOutputStream
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+import org.junit.Rule
+
+class DictionaryDataTest {
+  @JvmField @Rule val testDic = TestDictionary("system", "user0.dic")
+
+  private val dir: Path
+    get() = testDic.root.toPath().resolve("config/sudachi")
+
+  private fun config(): Config = Config.fromFile(dir.resolve("sudachi.json"))
+
+  private fun analyze(dictionary: ReloadableDictionary, text: String): List<String> {
+    return dictionary.get().create().tokenize(SplitMode.C, text).map {
+      it.surface() + "/" + it.partOfSpeech()[0]
+    }
+  }
+
+  @Test
+  fun sharesFilesBetweenConfigs() {
+    val data = DictionaryData()
+    val system = ReloadableDictionary(config(), data)
+    val user = ReloadableDictionary(config().addUserDictionary(dir.resolve("user0.dic")), data)
+    val otherPath =
+        ReloadableDictionary(
+            config().systemDictionary(dir.resolve("../sudachi/system_core.dic")), data)
+    assertEquals(2, data.size)
+
+    assertEquals(listOf("にアイ都/名詞"), analyze(user, "にアイ都"))
+    val expected = analyze(ReloadableDictionary(config()), "東京都にアイ都")
+    assertEquals(expected, analyze(system, "東京都にアイ都"))
+    assertEquals(expected, analyze(otherPath, "東京都にアイ都"))
+  }
+
+  @Test
+  fun sharedFilesAreNotHashedAgain() {
+    val data = DictionaryData()
+    val first = data.view(config())
+    val second = data.view(config())
+    assertEquals(1, data.hashed.get())
+    assertEquals(1, data.size)
+    val system = dir.resolve("system_core.dic")
+    Files.setLastModifiedTime(
+        system, FileTime.fromMillis(Files.getLastModifiedTime(system).toMillis() + 1000))
+    val modified = data.view(config())
+    assertEquals(2, data.hashed.get())
+    // contents did not change, so the data is still shared
+    assertEquals(1, data.size)
+    listOf(first, second, modified).forEach { data.release(it) }
+    assertEquals(0, data.size)
+  }
+
+  @Test
+  fun dictionariesInJarsAreMapped() {
+    val jar = dir.resolve("dictionaries.jar")
+    JarOutputStream(Files.newOutputStream(jar)).use {
+      it.putNextEntry(JarEntry("system.dic"))
+      Files.copy(dir.resolve("system_core.dic"), it)
+      it.closeEntry()
+    }
+    val extracted = Files.createDirectory(dir.resolve("extracted"))
+    val data = DictionaryData(extracted)
+    val url = URL("jar:${jar.toUri()}!/system.dic")
+    val view = data.view(config().systemDictionary(url))
+    val buffers = data.dataOf(view)
+    assertEquals(1, buffers.size)
+    assertTrue(buffers[0] is MappedByteBuffer)
+    Files.list(extracted).use { assertEquals(1, it.count()) }
+    assertEquals(Files.size(dir.resolve("system_core.dic")), data.sizeInBytes)
+    val expected = analyze(ReloadableDictionary(config()), "東京都にアイ都")
+    val dictionary = ReloadableDictionary(config().systemDictionary(url), data)
+    assertEquals(expected, analyze(dictionary, "東京都にアイ都"))
+    // the extracted file is reused
+    assertEquals(1, data.size)
+    assertEquals(1, data.hashed.get())
+    Files.list(extracted).use { assertEquals(1, it.count()) }
+    data.release(view)
+    dictionary.release()
+    assertEquals(0, data.size)
+    Files.list(extracted).use { assertEquals(0, it.count()) }
+  }
+
+  @Test
+  fun inMemoryDictionariesAreNotShared() {
+    val data = DictionaryData()
+    val dic = ReloadableDictionary(InMemoryDictionary().config, data)
+    assertEquals(0, data.size)
+    assertEquals(listOf("東京都/名詞"), analyze(dic, "東京都"))
+  }
+}
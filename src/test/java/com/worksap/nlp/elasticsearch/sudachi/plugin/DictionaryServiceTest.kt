@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import com.worksap.nlp.sudachi.Config
+import com.worksap.nlp.sudachi.Dictionary
+import com.worksap.nlp.sudachi.Tokenizer
+import com.worksap.nlp.sudachi.Tokenizer.SplitMode
+import com.worksap.nlp.sudachi.dictionary.BinaryDictionary
+import com.worksap.nlp.sudachi.dictionary.build.DicBuilder
+import com.worksap.nlp.test.InMemoryByteChannel
+import com.worksap.nlp.test.TestDictionary
+import java.lang.ref.Reference
+import java.nio.ByteOrder
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNotSame
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+import kotlin.test.fail
+import org.junit.Rule
+
+class DictionaryServiceTest {
+  @JvmField @Rule val testDic = TestDictionary("system", "user0.dic")
+
+  private fun config(): Config =
+      Config.fromFile(testDic.root.toPath().resolve("config/sudachi/sudachi.json"))
+
+  private val user: Path
+    get() = testDic.root.toPath().resolve("config/sudachi/user.dic")
+
+  /** Build a user dictionary from [lines] of CSV and atomically replace [user] with it */
+  private fun writeUserDictionary(vararg lines: String) {
+    val csv = Files.createTempFile(testDic.root.toPath(), "user", ".csv")
+    Files.write(csv, lines.toList())
+    val system =
+        BinaryDictionary(
+            TestDictionary.inMemorySystemData.duplicate().order(ByteOrder.LITTLE_ENDIAN))
+    val buf = InMemoryByteChannel()
+    DicBuilder.user(system).lexicon(csv.toUri().toURL()).build(buf)
+    val data = buf.view()
+    data.flip()
+    val tmp = Files.createTempFile(testDic.root.toPath(), "user", ".dic")
+    Files.newByteChannel(tmp, StandardOpenOption.WRITE).use { it.write(data) }
+    Files.move(tmp, user, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+  }
+
+  private fun surfaces(tokenizer: Tokenizer, text: String): List<String> {
+    return tokenizer.tokenize(SplitMode.C, text).map { it.surface() }
+  }
+
+  private class RecordingListener : DictionaryReloadListener {
+    val events = ArrayList<String>()
+    var dictionary: Dictionary? = null
+
+    override fun beforeReload(config: Config, dictionary: Dictionary) {
+      events.add("before")
+      this.dictionary = dictionary
+    }
+
+    override fun afterReload(config: Config) {
+      events.add("after")
+    }
+  }
+
+  private fun awaitCollected(service: DictionaryService, count: Int) {
+    repeat(100) {
+      if (service.stats()["count"] == count) {
+        return
+      }
+      System.gc()
+      Thread.sleep(50)
+    }
+    fail("dictionaries were not released: ${service.stats()}")
+  }
+
+  @Test
+  fun sameConfigSharesDictionary() {
+    DictionaryService().use { service ->
+      val owner1 = Any()
+      val owner2 = Any()
+      val dic1 = service.acquire(config()).tieTo(owner1).dictionary
+      val dic2 = service.acquire(config()).tieTo(owner2).dictionary
+      assertSame(dic1, dic2)
+      assertEquals(1, service.stats()["count"])
+      assertEquals(1, service.stats()["in_use"])
+      assertEquals(1, service.stats()["files"])
+    }
+  }
+
+  @Test
+  fun loadsInBackground() {
+    DictionaryService().use { service ->
+      val owner = Any()
+      val lease = service.acquire(config()).tieTo(owner)
+      val loaded = CompletableFuture<ReloadableDictionary>()
+      lease.whenLoaded { loaded.complete(it) }
+      assertSame(lease.dictionary, loaded.get(10, TimeUnit.SECONDS))
+      val stats = service.stats()
+      assertEquals(0, stats["loading"])
+      assertEquals(0L, stats["load_failures"])
+      assertTrue(stats["load_time_in_millis"] as Long >= 0L)
+    }
+  }
+
+  @Test
+  fun failedLoadIsReported() {
+    DictionaryService().use { service ->
+      val missing = config().systemDictionary(user.resolveSibling("missing.dic"))
+      val lease = service.acquire(missing).tieTo(Any())
+      assertFailsWith<IllegalStateException> { lease.dictionary }
+      assertEquals(1L, service.stats()["load_failures"])
+    }
+  }
+
+  @Test
+  fun releasedWhenOwnersAreCollected() {
+    DictionaryService(releaseDelaySeconds = 0).use { service ->
+      var owner: Any? = Any()
+      service.acquire(config()).tieTo(owner!!).dictionary
+      assertEquals(1, service.stats()["count"])
+      Reference.reachabilityFence(owner)
+      owner = null
+      awaitCollected(service, 0)
+      assertEquals(0, service.stats()["files"])
+      assertEquals(0L, service.stats()["size_in_bytes"])
+    }
+  }
+
+  @Test
+  fun keptDuringReleaseDelay() {
+    DictionaryService(releaseDelaySeconds = 3600).use { service ->
+      val first = service.acquire(config()).tieTo(Any()).dictionary
+      repeat(10) {
+        System.gc()
+        Thread.sleep(20)
+      }
+      assertEquals(1, service.stats()["count"])
+      val owner = Any()
+      assertSame(first, service.acquire(config()).tieTo(owner).dictionary)
+    }
+  }
+
+  @Test
+  fun reloadedAfterRelease() {
+    DictionaryService(releaseDelaySeconds = 0).use { service ->
+      val first = service.acquire(config()).tieTo(Any()).dictionary
+      awaitCollected(service, 0)
+      val owner = Any()
+      assertNotSame(first, service.acquire(config()).tieTo(owner).dictionary)
+      assertEquals(1, service.stats()["in_use"])
+    }
+  }
+
+  @Test
+  fun reloadPicksUpChangedFiles() {
+    writeUserDictionary("にアイ都,8,8,-1000,にアイ都,名詞,普通名詞,一般,*,*,*,ニアイト,にアイ都,*,A,*,*,*,*")
+    DictionaryService().use { service ->
+      val listener = RecordingListener()
+      service.addReloadListener(listener)
+      val owner = Any()
+      val dic = service.acquire(config().addUserDictionary(user)).tieTo(owner).dictionary
+      val tokenizer = dic.newTokenizer()
+      val old = tokenizer.get()
+      assertEquals(listOf("にアイ都"), surfaces(old, "にアイ都"))
+
+      writeUserDictionary("アイ都,8,8,-1000,アイ都,名詞,普通名詞,一般,*,*,*,アイト,アイ都,*,A,*,*,*,*")
+      val report = service.reload().get(10, TimeUnit.SECONDS)
+      assertEquals(1, (report["reloaded"] as List<*>).size)
+      assertEquals(1L, dic.version)
+      assertEquals(listOf("before", "after"), listener.events)
+      assertSame(dic.get(), listener.dictionary)
+      assertEquals(listOf("に", "アイ都"), surfaces(tokenizer.get(), "にアイ都"))
+      // analysis with the previous tokenizer still works
+      assertEquals(listOf("にアイ都"), surfaces(old, "にアイ都"))
+    }
+  }
+
+  @Test
+  fun failedReloadKeepsDictionary() {
+    writeUserDictionary("にアイ都,8,8,-1000,にアイ都,名詞,普通名詞,一般,*,*,*,ニアイト,にアイ都,*,A,*,*,*,*")
+    DictionaryService().use { service ->
+      val listener = RecordingListener()
+      service.addReloadListener(listener)
+      val owner = Any()
+      val dic = service.acquire(config().addUserDictionary(user)).tieTo(owner).dictionary
+      val current = dic.get()
+      Files.delete(user)
+      val report = service.reload().get(10, TimeUnit.SECONDS)
+      assertEquals(1, (report["failed"] as List<*>).size)
+      assertSame(current, dic.get())
+      assertEquals(0L, dic.version)
+      assertNull(listener.dictionary)
+    }
+  }
+}
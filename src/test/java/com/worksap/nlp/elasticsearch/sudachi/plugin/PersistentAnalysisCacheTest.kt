@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import com.worksap.nlp.lucene.sudachi.ja.CompactMorphemeList
+import com.worksap.nlp.search.aliases.Settings
+import com.worksap.nlp.sudachi.Config
+import com.worksap.nlp.sudachi.Tokenizer.SplitMode
+import com.worksap.nlp.test.InMemoryDictionary
+import com.worksap.nlp.test.TestDictionary
+import java.nio.file.Path
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNotEquals
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+
+class PersistentAnalysisCacheTest {
+  @JvmField @Rule val tmp = TemporaryFolder()
+  @JvmField @Rule val testDic = TestDictionary("system", "user0.dic")
+
+  private val dic = InMemoryDictionary()
+  private val tokenizer = dic.dic.newTokenizer().get()
+
+  private val file: Path
+    get() = tmp.root.toPath().resolve("cache.bin")
+
+  private fun compact(text: String): CompactMorphemeList {
+    return CompactMorphemeList.compact(text, tokenizer.tokenize(SplitMode.C, text), dic.dic.get())
+  }
+
+  private fun surfaces(list: CompactMorphemeList, mode: SplitMode): List<String> {
+    return list.morphemes(mode).map { it.surface() + "/" + it.readingForm() + "/" + it.isOOV }
+  }
+
+  private fun assertRestored(expected: CompactMorphemeList, actual: CompactMorphemeList?) {
+    assertNotNull(actual)
+    for (mode in SplitMode.values()) {
+      assertEquals(surfaces(expected, mode), surfaces(actual, mode))
+    }
+  }
+
+  @Test
+  fun storesAndReadsResults() {
+    PersistentAnalysisCache(file, 1L, 64 * 1024).use { cache ->
+      val text = "東京都へ行く東京都ＸＹＺ"
+      assertNull(cache.get(text, dic.dic.get()))
+      cache.put(compact(text))
+      assertRestored(compact(text), cache.get(text, dic.dic.get()))
+      assertNull(cache.get("東京都", dic.dic.get()))
+      assertEquals(1L, cache.stats()["hits"])
+      assertEquals(2L, cache.stats()["misses"])
+      assertEquals(1L, cache.stats()["count"])
+    }
+  }
+
+  @Test
+  fun survivesReopen() {
+    val texts = listOf("東京都に行った", "東京都へ行く", "abcdef。ＸＹＺ")
+    PersistentAnalysisCache(file, 1L, 64 * 1024).use { cache ->
+      texts.forEach { cache.put(compact(it)) }
+    }
+    PersistentAnalysisCache(file, 1L, 64 * 1024).use { cache ->
+      assertEquals(3L, cache.stats()["count"])
+      texts.forEach { assertRestored(compact(it), cache.get(it, dic.dic.get())) }
+    }
+  }
+
+  @Test
+  fun discardedWhenFingerprintChanges() {
+    PersistentAnalysisCache(file, 1L, 64 * 1024).use { it.put(compact("東京都に行った")) }
+    PersistentAnalysisCache(file, 2L, 64 * 1024).use { cache ->
+      assertEquals(0L, cache.stats()["count"])
+      assertNull(cache.get("東京都に行った", dic.dic.get()))
+    }
+  }
+
+  @Test
+  fun compactedWhenFull() {
+    PersistentAnalysisCache(file, 1L, 1024).use { cache ->
+      cache.put(compact("東京都"))
+      repeat(20) {
+        assertNotNull(cache.get("東京都", dic.dic.get()))
+        cache.put(compact("東京都に行った$it"))
+      }
+      val count = cache.stats()["count"]!!
+      assert(count in 1..19) { "count was $count" }
+      assert(cache.stats()["size_in_bytes"]!! <= 1024)
+      assert(cache.stats()["compactions"]!! > 0)
+      assertRestored(compact("東京都に行った19"), cache.get("東京都に行った19", dic.dic.get()))
+      // entries which are read survive compactions
+      assertRestored(compact("東京都"), cache.get("東京都", dic.dic.get()))
+    }
+    PersistentAnalysisCache(file, 1L, 1024).use { cache ->
+      assertRestored(compact("東京都"), cache.get("東京都", dic.dic.get()))
+      assertRestored(compact("東京都に行った19"), cache.get("東京都に行った19", dic.dic.get()))
+    }
+  }
+
+  @Test
+  fun fingerprintDependsOnDictionaryFiles() {
+    val config = Config.fromFile(testDic.root.toPath().resolve("config/sudachi/sudachi.json"))
+    val data = DictionaryData()
+    val fingerprint = assertNotNull(PersistentAnalysisCache.fingerprint(config, data::checksum))
+    assertEquals(fingerprint, PersistentAnalysisCache.fingerprint(config, data::checksum))
+    val withUser =
+        config.addUserDictionary(testDic.root.toPath().resolve("config/sudachi/user0.dic"))
+    assertNotEquals(fingerprint, PersistentAnalysisCache.fingerprint(withUser, data::checksum))
+    assertNull(PersistentAnalysisCache.fingerprint(dic.config, data::checksum))
+  }
+
+  @Test
+  fun fingerprintReusesChecksumsOfDictionaryData() {
+    val config = Config.fromFile(testDic.root.toPath().resolve("config/sudachi/sudachi.json"))
+    val data = DictionaryData()
+    val view = data.view(config)
+    val hashed = data.hashed.get()
+    // the system dictionary was checksummed when it was shared
+    val fingerprint = PersistentAnalysisCache.fingerprint(config, data::checksum)
+    assertEquals(hashed, data.hashed.get())
+    data.release(view)
+    // checksums are remembered after the data is dropped
+    assertEquals(fingerprint, PersistentAnalysisCache.fingerprint(config, data::checksum))
+    assertEquals(hashed, data.hashed.get())
+  }
+
+  @Test
+  fun serviceIsDisabledByDefault() {
+    val service = AnalysisCacheService(Settings.EMPTY)
+    service.analysisCache("index", dic.config, SplitMode.C, Settings.EMPTY)
+    assertNull(service.statsReport()["persistent_cache"])
+  }
+
+  @Test
+  fun refreshAcceptsOnlyNewDictionary() {
+    PersistentAnalysisCache(file, 1L, 64 * 1024).use { cache ->
+      cache.put(compact("東京都"))
+      val reloaded = dic.newDictionary().get()
+      cache.refresh(1L, reloaded)
+      assertNull(cache.get("東京都", dic.dic.get()))
+      assertNotNull(cache.get("東京都", reloaded))
+      cache.put(compact("東京都に行く"))
+      assertEquals(1L, cache.stats()["count"])
+      cache.refresh(2L, reloaded)
+      assertEquals(0L, cache.stats()["count"])
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import com.worksap.nlp.lucene.sudachi.ja.CachingTokenizer
+import com.worksap.nlp.lucene.sudachi.ja.NonCachedAnalysis
+import com.worksap.nlp.lucene.sudachi.ja.input.ChainedExtractor
+import com.worksap.nlp.lucene.sudachi.ja.input.CopyingInputExtractor
+import com.worksap.nlp.lucene.sudachi.ja.input.ExtractionResult
+import com.worksap.nlp.lucene.sudachi.ja.input.InputExtractor
+import com.worksap.nlp.lucene.sudachi.ja.input.SizeLimitedExtractor
+import com.worksap.nlp.sudachi.Tokenizer.SplitMode
+import com.worksap.nlp.test.InMemoryDictionary
+import java.io.Reader
+import java.io.StringReader
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertIs
+import kotlin.test.assertTrue
+
+class RecentInputsTest {
+  private val dic = InMemoryDictionary()
+
+  /** Returns the string instance of the reader without copying, like the zero-copy extractor */
+  private class InstanceReader(val text: String) : Reader() {
+    private val reader = StringReader(text)
+    /** Number of characters which were read */
+    var consumed = 0
+
+    override fun read(cbuf: CharArray, off: Int, len: Int): Int {
+      return reader.read(cbuf, off, len).also { if (it > 0) consumed += it }
+    }
+
+    override fun close() {}
+  }
+
+  private object InstanceExtractor : InputExtractor {
+    override fun extract(input: Reader) = ExtractionResult((input as InstanceReader).text, false)
+
+    override fun canExtract(input: Reader) = input is InstanceReader
+
+    override fun instance(input: Reader) = (input as? InstanceReader)?.text
+  }
+
+  private fun analyze(cache: AnalysisCache, reader: Reader, mode: SplitMode): List<String> {
+    val tokenizer = CachingTokenizer(dic.dic.newTokenizer(), mode, cache)
+    val iter = tokenizer.tokenize(reader)
+    return generateSequence { iter.next() }.map { it.surface() }.toList()
+  }
+
+  @Test
+  fun sameInstanceIsReusedBetweenCaches() {
+    val text = "東京都に行った"
+    val first = AnalysisCache(1024 * 1024L, InstanceExtractor)
+    val second = AnalysisCache(1024 * 1024L, InstanceExtractor)
+    assertEquals(listOf("東京都", "に", "行っ", "た"), analyze(first, InstanceReader(text), SplitMode.C))
+    assertEquals(
+        listOf("東京", "都", "に", "行っ", "た"), analyze(second, InstanceReader(text), SplitMode.A))
+    assertEquals(1, first.stats().misses)
+    assertEquals(0, second.stats().misses)
+    assertEquals(1, second.stats().reused)
+  }
+
+  @Test
+  fun equalStringsAreLookedUpInCache() {
+    val cache = AnalysisCache(1024 * 1024L, InstanceExtractor)
+    analyze(cache, InstanceReader(String("東京都".toCharArray())), SplitMode.C)
+    analyze(cache, InstanceReader(String("東京都".toCharArray())), SplitMode.C)
+    assertEquals(1, cache.stats().hits)
+    assertEquals(0, cache.stats().reused)
+  }
+
+  @Test
+  fun onlyLastInputsAreKept() {
+    val cache = AnalysisCache(1024 * 1024L, InstanceExtractor)
+    val inputs = List(RecentInputs.SIZE + 1) { "東京都".repeat(it + 1) }
+    inputs.forEach { analyze(cache, InstanceReader(it), SplitMode.C) }
+    analyze(cache, InstanceReader(inputs.last()), SplitMode.C)
+    analyze(cache, InstanceReader(inputs.first()), SplitMode.C)
+    assertEquals(1, cache.stats().reused)
+    assertEquals(1, cache.stats().hits)
+  }
+
+  @Test
+  fun inputsLongerThanMaxInputAreReused() {
+    val extractor =
+        ChainedExtractor(SizeLimitedExtractor(InstanceExtractor, 8), CopyingInputExtractor(8))
+    val text = "東京都に行った。東京都に行った。"
+    val first = AnalysisCache(1024 * 1024L, extractor)
+    val second = AnalysisCache(1024 * 1024L, extractor)
+    assertEquals(
+        listOf("東京都", "に", "行っ", "た", "。", "東京都", "に", "行っ", "た", "。"),
+        analyze(first, InstanceReader(text), SplitMode.C))
+    assertEquals(
+        listOf("東京", "都", "に", "行っ", "た", "。", "東京", "都", "に", "行っ", "た", "。"),
+        analyze(second, InstanceReader(text), SplitMode.A))
+    // cached sentence by sentence
+    assertEquals(1, first.stats().misses)
+    assertEquals(1, first.stats().hits)
+    assertEquals(0, second.stats().misses)
+    assertEquals(1, second.stats().reused)
+  }
+
+  @Test
+  fun largeInputsAreStreamed() {
+    val extractor =
+        ChainedExtractor(SizeLimitedExtractor(InstanceExtractor, 128), CopyingInputExtractor(128))
+    val cache = AnalysisCache(1024 * 1024L, extractor)
+    val text = "東京都に行った。".repeat(300_000)
+    repeat(2) {
+      val reader = InstanceReader(text)
+      val iter = CachingTokenizer(dic.dic.newTokenizer(), SplitMode.C, cache).tokenize(reader)
+      assertEquals("東京都", iter.next()?.surface())
+      assertTrue(reader.consumed <= 2 * NonCachedAnalysis.DEFAULT_MAX_CHUNK_LENGTH)
+    }
+    assertEquals(0, cache.stats().reused)
+  }
+
+  @Test
+  fun largeInputsOfDisabledCacheAreChunked() {
+    val cache = AnalysisCache(0, InstanceExtractor)
+    val reader = InstanceReader("東京都に行った。".repeat(300_000))
+    val iter = CachingTokenizer(dic.dic.newTokenizer(), SplitMode.C, cache).tokenize(reader)
+    assertIs<NonCachedAnalysis>(iter)
+    assertEquals("東京都", iter.next()?.surface())
+    assertTrue(reader.consumed <= 2 * NonCachedAnalysis.DEFAULT_MAX_CHUNK_LENGTH)
+  }
+
+  @Test
+  fun disabledCacheDoesNotReuse() {
+    val cache = AnalysisCache(0, InstanceExtractor)
+    val text = "東京都"
+    assertEquals(listOf("東京都"), analyze(cache, InstanceReader(text), SplitMode.C))
+    assertEquals(listOf("東京都"), analyze(cache, InstanceReader(text), SplitMode.C))
+    assertEquals(0, cache.stats().reused)
+  }
+}
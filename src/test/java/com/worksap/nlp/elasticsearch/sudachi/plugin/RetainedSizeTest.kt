@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import com.worksap.nlp.lucene.sudachi.ja.CompactMorphemeList
+import com.worksap.nlp.sudachi.Tokenizer
+import com.worksap.nlp.sudachi.dictionary.CategoryType
+import com.worksap.nlp.test.InMemoryDictionary
+import java.lang.reflect.Modifier
+import java.util.Collections
+import java.util.IdentityHashMap
+import kotlin.math.abs
+import kotlin.test.Test
+import kotlin.test.assertTrue
+import org.openjdk.jol.vm.VM
+
+class RetainedSizeTest {
+  private val dic = InMemoryDictionary()
+  private val tokenizer = dic.dic.newTokenizer().get()
+  private val vm = VM.current()
+
+  /** Objects which are referenced by analysis results, but are not owned by them */
+  private val shared = run {
+    val roots = ArrayList<Any>()
+    roots.add(dic.dic.get())
+    roots.add(java.lang.Boolean.TRUE)
+    roots.add(java.lang.Boolean.FALSE)
+    (-128..127).forEach { roots.add(Integer.valueOf(it)) }
+    roots.addAll(CategoryType.values())
+    roots.addAll(Tokenizer.SplitMode.values())
+    roots.add(CompactMorphemeList.NO_SPLITS)
+    roots.add(CompactMorphemeList.NO_SYNTHETIC)
+    reachable(roots, emptySet())
+  }
+
+  /**
+   * Collects objects reachable from [roots] by identity, stopping at [excluded] objects and
+   * classes.
+   *
+   * JOL GraphLayout can not be used for this as it subtracts graphs by object addresses, which
+   * change when objects are moved by GC.
+   */
+  private fun reachable(roots: List<Any>, excluded: Set<Any>): Set<Any> {
+    val visited = Collections.newSetFromMap(IdentityHashMap<Any, Boolean>())
+    val stack = ArrayDeque(roots)
+    while (stack.isNotEmpty()) {
+      val obj = stack.removeLast()
+      if (obj is Class<*> || obj in excluded || !visited.add(obj)) {
+        continue
+      }
+      if (obj is Array<*>) {
+        obj.forEach { if (it != null) stack.add(it) }
+        continue
+      }
+      var clazz: Class<*>? = obj.javaClass
+      while (clazz != null) {
+        for (field in clazz.declaredFields) {
+          if (Modifier.isStatic(field.modifiers) || field.type.isPrimitive) {
+            continue
+          }
+          val offset =
+              try {
+                vm.fieldOffset(field)
+              } catch (e: RuntimeException) {
+                // fields of hidden classes, e.g. lambdas, have no offsets and are never owned by
+                // analysis results
+                continue
+              }
+          vm.getObject(obj, offset)?.let { stack.add(it) }
+        }
+        clazz = clazz.superclass
+      }
+    }
+    return visited
+  }
+
+  private fun measured(vararg roots: Any): Long {
+    return reachable(roots.toList(), shared).sumOf { vm.sizeOf(it) }
+  }
+
+  private fun compact(input: String): CompactMorphemeList {
+    val list = tokenizer.tokenize(Tokenizer.SplitMode.C, input)
+    return CompactMorphemeList.compact(input, list, dic.dic.get())
+  }
+
+  private fun check(input: String) {
+    val list = compact(input)
+    val estimated = RetainedSize.compactMorphemeList(list)
+    val actual = measured(list)
+    val error = abs(estimated - actual).toDouble() / actual
+    assertTrue(error < 0.05, "estimated=$estimated, measured=$actual for input of ${input.length}")
+  }
+
+  @Test
+  fun shortInput() {
+    check("東京都へ行く")
+  }
+
+  @Test
+  fun inputWithUnknownWords() {
+    check("東京都にいったabcdef。ＸＹＺ")
+  }
+
+  @Test
+  fun longInput() {
+    check("東京都に行った。".repeat(100))
+  }
+
+  @Test
+  fun compactListIsSmallerThanAnalysisResult() {
+    val input = "東京都に行った。".repeat(100)
+    val original = measured(input, tokenizer.tokenize(Tokenizer.SplitMode.C, input))
+    val compacted = measured(compact(input))
+    assertTrue(compacted * 4 < original, "compacted=$compacted, original=$original")
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import com.worksap.nlp.lucene.sudachi.ja.CachingTokenizer
+import com.worksap.nlp.lucene.sudachi.ja.input.CopyingInputExtractor
+import com.worksap.nlp.search.aliases.Settings
+import com.worksap.nlp.sudachi.Tokenizer.SplitMode
+import com.worksap.nlp.test.InMemoryDictionary
+import java.io.StringReader
+import java.lang.ref.Reference
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNotSame
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+import kotlin.test.fail
+
+class SharedAnalysisCacheTest {
+  private val dic = InMemoryDictionary()
+
+  private fun analyze(cache: AnalysisCache, text: String, dictionary: InMemoryDictionary = dic) {
+    val tokenizer = CachingTokenizer(dictionary.dic.newTokenizer(), SplitMode.C, cache)
+    val iter = tokenizer.tokenize(StringReader(text))
+    while (iter.next() != null) {}
+  }
+
+  private fun nodeSettings(size: String?): Settings {
+    val builder = Settings.builder()
+    if (size != null) {
+      builder.put("sudachi.shared_cache.size", size)
+    }
+    return builder.build()
+  }
+
+  private val nodeScope = Settings.builder().put("cache-scope", "node").build()
+
+  @Test
+  fun sharedBetweenIndices() {
+    val shared = SharedAnalysisCache(1024 * 1024L, AnalysisCacheImpl.TINYLFU)
+    val first = AnalysisCache(shared.storage(), CopyingInputExtractor(128))
+    val second = AnalysisCache(shared.storage(), CopyingInputExtractor(128))
+    analyze(first, "東京都に行った")
+    analyze(second, "東京都に行った")
+    analyze(second, "東京都に行った")
+    assertEquals(0, first.stats().hits)
+    assertEquals(1, first.stats().misses)
+    assertEquals(2, second.stats().hits)
+    assertEquals(0, second.stats().misses)
+    assertEquals(0, second.stats().loadedWeight)
+    assertEquals(first.stats().loadedWeight, shared.stats().loadedWeight)
+    assertEquals(2, shared.stats().hits)
+  }
+
+  @Test
+  fun notSharedBetweenDictionaries() {
+    val shared = SharedAnalysisCache(1024 * 1024L, AnalysisCacheImpl.TINYLFU)
+    val first = AnalysisCache(shared.storage(), CopyingInputExtractor(128))
+    val second = AnalysisCache(shared.storage(), CopyingInputExtractor(128))
+    analyze(first, "東京都に行った")
+    analyze(second, "東京都に行った", InMemoryDictionary())
+    assertEquals(1, first.stats().misses)
+    assertEquals(1, second.stats().misses)
+  }
+
+  @Test
+  fun entriesAreAttributedToIndices() {
+    val shared = SharedAnalysisCache(1024 * 1024L, AnalysisCacheImpl.TINYLFU)
+    val first = AnalysisCache(shared.storage(), CopyingInputExtractor(128))
+    val second = AnalysisCache(shared.storage(), CopyingInputExtractor(128))
+    analyze(first, "東京都に行った")
+    analyze(second, "東京都に行った")
+    analyze(second, "東京都")
+    assertEquals(1, first.stats().count)
+    assertEquals(1, second.stats().count)
+    assertEquals(first.stats().loadedWeight, first.stats().weight)
+    assertEquals(shared.stats().weight, first.stats().weight + second.stats().weight)
+  }
+
+  @Test
+  fun entriesOfUnusedDictionaryAreRemoved() {
+    val shared = SharedAnalysisCache(1024 * 1024L, AnalysisCacheImpl.TINYLFU)
+    val first = AnalysisCache(shared.storage(), CopyingInputExtractor(128))
+    val second = AnalysisCache(shared.storage(), CopyingInputExtractor(128))
+    analyze(first, "東京都に行った")
+    analyze(second, "東京都")
+    val reloaded = InMemoryDictionary()
+    first.invalidate(reloaded.dic.get())
+    // the second index still uses the old dictionary
+    assertEquals(2, shared.stats().count)
+    second.invalidate(reloaded.dic.get())
+    assertEquals(0, shared.stats().count)
+    assertEquals(0, first.stats().weight)
+    assertEquals(0, second.stats().count)
+    assertEquals(0, shared.stats().evictions)
+  }
+
+  @Test
+  fun entriesOfReloadedIndexAreRemovedWhenItIsCollected() {
+    val shared = SharedAnalysisCache(1024 * 1024L, AnalysisCacheImpl.TINYLFU)
+    val storage = shared.storage()
+    var owner: AnalysisCache? = AnalysisCache(storage, CopyingInputExtractor(128))
+    shared.releaseWith(owner!!, storage)
+    analyze(owner, "東京都")
+    val reloaded = InMemoryDictionary()
+    owner.invalidate(reloaded.dic.get())
+    analyze(owner, "東京都に行った", reloaded)
+    assertEquals(1, shared.stats().count)
+    Reference.reachabilityFence(owner)
+    owner = null
+    repeat(100) {
+      if (shared.stats().count == 0L) {
+        return
+      }
+      System.gc()
+      Thread.sleep(50)
+    }
+    fail("entries were not removed: ${shared.stats()}")
+  }
+
+  @Test
+  fun serviceUsesSharedCacheForNodeScope() {
+    val service = AnalysisCacheService(nodeSettings("1mb"))
+    val first = service.analysisCache("index-1", dic.config, SplitMode.C, nodeScope)
+    val second = service.analysisCache("index-2", dic.config, SplitMode.C, nodeScope)
+    assertNotSame(first, second)
+    analyze(first, "東京都に行った")
+    analyze(second, "東京都に行った")
+    assertEquals(1, second.stats().hits)
+    assertEquals(1, service.shared!!.stats().hits)
+  }
+
+  @Test
+  fun serviceUsesIndexCacheByDefault() {
+    val service = AnalysisCacheService(nodeSettings("1mb"))
+    val first = service.analysisCache("index-1", dic.config, SplitMode.C, Settings.EMPTY)
+    val second = service.analysisCache("index-2", dic.config, SplitMode.C, Settings.EMPTY)
+    analyze(first, "東京都に行った")
+    analyze(second, "東京都に行った")
+    assertEquals(0, second.stats().hits)
+    assertEquals(0, service.shared!!.stats().misses)
+  }
+
+  @Test
+  fun nodeScopeWithoutSharedCacheFallsBackToIndex() {
+    val service = AnalysisCacheService(nodeSettings(null))
+    assertNull(service.shared)
+    val first = service.analysisCache("index-1", dic.config, SplitMode.C, nodeScope)
+    val again = service.analysisCache("index-1", dic.config, SplitMode.C, Settings.EMPTY)
+    assertSame(first, again)
+  }
+
+  @Test
+  fun serviceReportsStatsByIndex() {
+    val service = AnalysisCacheService(nodeSettings("1mb"))
+    val private = service.analysisCache("index-1", dic.config, SplitMode.C, Settings.EMPTY)
+    val shared = service.analysisCache("index-2", dic.config, SplitMode.C, nodeScope)
+    analyze(private, "東京都に行った")
+    analyze(private, "東京都に行った")
+    analyze(shared, "東京都に行った")
+    val report = service.statsReport()
+    val indices = report["indices"] as Map<*, *>
+    val first = indices["index-1"] as Map<*, *>
+    assertEquals(1L, first["hits"])
+    assertEquals(1L, first["misses"])
+    assertEquals(1L, first["count"])
+    val second = indices["index-2"] as Map<*, *>
+    assertEquals(0L, second["hits"])
+    assertEquals(1L, second["misses"])
+    val total = report["total"] as Map<*, *>
+    assertEquals(2L, total["misses"])
+    val node = report["shared_cache"] as Map<*, *>
+    assertEquals(1L, node["count"])
+    assertEquals(second["loaded_in_bytes"], node["size_in_bytes"])
+  }
+}
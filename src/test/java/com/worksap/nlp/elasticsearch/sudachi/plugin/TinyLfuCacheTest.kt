@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import java.util.Random
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.concurrent.thread
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class TinyLfuCacheTest {
+  private fun cache(maxWeight: Long, concurrency: Int = 1) =
+      TinyLfuCache<Int, String>(maxWeight, { _, _ -> 1L }, concurrency)
+
+  @Test
+  fun cached() {
+    val cache = cache(100)
+    assertEquals("1", cache.computeIfAbsent(1) { it.toString() })
+    assertEquals("1", cache.computeIfAbsent(1) { "other" })
+    assertEquals(
+        AnalysisCacheStats(hits = 1, misses = 1, evictions = 0, weight = 1, count = 1),
+        cache.stats())
+  }
+
+  @Test
+  fun weightIsBounded() {
+    val cache = cache(100, concurrency = 4)
+    for (i in 0 until 10_000) {
+      cache.computeIfAbsent(i) { it.toString() }
+    }
+    assertTrue(cache.weight <= 100, "weight was ${cache.weight}")
+    assertEquals(cache.size.toLong(), cache.weight)
+    assertEquals(10_000 - cache.weight, cache.stats().evictions)
+  }
+
+  @Test
+  fun tooLargeEntriesAreNotCached() {
+    val cache = TinyLfuCache<String, String>(100, { k, _ -> k.length.toLong() }, 1)
+    val key = "x".repeat(200)
+    cache.computeIfAbsent(key) { it }
+    cache.computeIfAbsent(key) { it }
+    assertEquals(2, cache.stats().misses)
+    assertEquals(0, cache.size)
+  }
+
+  @Test
+  fun removeIfNotifiesListener() {
+    var total = 0L
+    var evictions = 0
+    val listener =
+        object : EntryListener<Int, String> {
+          override fun added(key: Int, value: String, weight: Long) {
+            total += weight
+          }
+
+          override fun removed(key: Int, value: String, weight: Long, evicted: Boolean) {
+            total -= weight
+            if (evicted) evictions += 1
+          }
+        }
+    val cache = TinyLfuCache<Int, String>(10, { _, _ -> 1L }, 1, listener)
+    for (i in 0 until 20) {
+      cache.computeIfAbsent(i) { it.toString() }
+    }
+    assertEquals(cache.weight, total)
+    assertEquals(cache.stats().evictions, evictions.toLong())
+    cache.removeIf { it % 2 == 0 }
+    assertEquals(cache.weight, total)
+    assertTrue((0 until 20).none { it % 2 == 0 && cache.computeIfAbsent(it) { "new" } != "new" })
+    assertEquals(cache.stats().evictions, evictions.toLong())
+  }
+
+  @Test
+  fun frequentEntriesSurviveScan() {
+    val cache = cache(100)
+    repeat(10) {
+      for (i in 0 until 20) {
+        cache.computeIfAbsent(i) { it.toString() }
+      }
+    }
+    // one-off entries must not push frequently used entries out of the cache
+    for (i in 1000 until 5000) {
+      cache.computeIfAbsent(i) { it.toString() }
+    }
+    val before = cache.stats()
+    for (i in 0 until 20) {
+      cache.computeIfAbsent(i) { it.toString() }
+    }
+    // the last hot entry was still in the window when the scan started, it can be evicted
+    val misses = cache.stats().misses - before.misses
+    assertTrue(misses <= 1, "$misses of 20 frequent entries were evicted")
+  }
+
+  @Test
+  fun hitRateOnSkewedInputIsNotWorseThanLru() {
+    val capacity = 500
+    val cache = cache(capacity.toLong())
+    val lru =
+        object : LinkedHashMap<Int, String>(capacity, 0.75f, true) {
+          override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Int, String>?): Boolean {
+            return size > capacity
+          }
+        }
+    var lruHits = 0
+    val zipf = Zipf(20_000, Random(42))
+    val total = 200_000
+    repeat(total) {
+      val key = zipf.next()
+      cache.computeIfAbsent(key) { it.toString() }
+      if (lru[key] != null) {
+        lruHits += 1
+      } else {
+        lru[key] = key.toString()
+      }
+    }
+    val hits = cache.stats().hits
+    assertTrue(hits >= lruHits, "TinyLFU hits=$hits, LRU hits=$lruHits of $total")
+  }
+
+  @Test
+  fun concurrentAccess() {
+    val cache = cache(1000, concurrency = 8)
+    val start = CountDownLatch(1)
+    val error = AtomicReference<Throwable>()
+    val threads =
+        (0 until 8).map { t ->
+          thread {
+            start.await()
+            val zipf = Zipf(5000, Random(t.toLong()))
+            try {
+              repeat(50_000) {
+                val key = zipf.next()
+                val value = cache.computeIfAbsent(key) { it.toString() }
+                assertEquals(key.toString(), value)
+              }
+            } catch (e: Throwable) {
+              error.compareAndSet(null, e)
+            }
+          }
+        }
+    start.countDown()
+    threads.forEach { it.join() }
+    assertNull(error.get())
+    assertTrue(cache.weight <= 1000)
+    val stats = cache.stats()
+    assertEquals(8 * 50_000L, stats.hits + stats.misses)
+  }
+
+  private class Zipf(size: Int, private val random: Random) {
+    private val cumulative = DoubleArray(size)
+
+    init {
+      var sum = 0.0
+      for (i in 0 until size) {
+        sum += 1.0 / (i + 1)
+        cumulative[i] = sum
+      }
+      for (i in 0 until size) {
+        cumulative[i] /= sum
+      }
+    }
+
+    fun next(): Int {
+      val idx = cumulative.binarySearch(random.nextDouble())
+      return if (idx >= 0) idx else -idx - 1
+    }
+  }
+}
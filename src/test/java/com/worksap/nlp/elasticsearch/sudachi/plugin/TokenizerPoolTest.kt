@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.elasticsearch.sudachi.plugin
+
+import com.worksap.nlp.test.InMemoryDictionary
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNotSame
+import kotlin.test.assertSame
+
+class TokenizerPoolTest {
+  private val dic = InMemoryDictionary()
+
+  private fun pool(maxIdle: Int = 2) =
+      TokenizerPool(dic.dic.get(), TokenizerPool.Limits(maxIdle, 10, 100))
+
+  @Test
+  fun reusesReturnedTokenizers() {
+    val pool = pool()
+    val first = pool.acquire()
+    pool.release(first)
+    assertSame(first, pool.acquire())
+    assertEquals(
+        TokenizerPool.Stats(
+            created = 1,
+            reused = 1,
+            discarded = 0,
+            discardedLarge = 0,
+            idle = 0,
+            largestIdleInput = 0),
+        pool.stats())
+  }
+
+  @Test
+  fun keepsAtMostMaxIdle() {
+    val pool = pool(maxIdle = 2)
+    val tokenizers = List(3) { pool.acquire() }
+    tokenizers.forEach { pool.release(it) }
+    assertEquals(
+        TokenizerPool.Stats(
+            created = 3,
+            reused = 0,
+            discarded = 1,
+            discardedLarge = 0,
+            idle = 2,
+            largestIdleInput = 0),
+        pool.stats())
+  }
+
+  @Test
+  fun trimDropsIdleTokenizers() {
+    val pool = pool()
+    pool.release(pool.acquire())
+    pool.trim()
+    assertEquals(1, pool.stats().idle)
+    pool.trim(System.nanoTime() + TimeUnit.SECONDS.toNanos(11))
+    assertEquals(0, pool.stats().idle)
+    assertEquals(1, pool.stats().discarded)
+  }
+
+  @Test
+  fun closedPoolDropsTokenizers() {
+    val pool = pool()
+    val tokenizer = pool.acquire()
+    pool.release(pool.acquire())
+    pool.close()
+    pool.release(tokenizer)
+    assertEquals(
+        TokenizerPool.Stats(
+            created = 2,
+            reused = 0,
+            discarded = 2,
+            discardedLarge = 0,
+            idle = 0,
+            largestIdleInput = 0),
+        pool.stats())
+  }
+
+  @Test
+  fun tokenizersReleasedWhileClosingAreDropped() {
+    repeat(1000) {
+      val pool = pool(maxIdle = 16)
+      val tokenizers = List(16) { pool.acquire() }
+      val start = CountDownLatch(1)
+      val threads =
+          tokenizers.map { tokenizer ->
+            thread {
+              start.await()
+              pool.release(tokenizer)
+            }
+          }
+      val closing = thread {
+        start.await()
+        pool.close()
+      }
+      start.countDown()
+      closing.join()
+      threads.forEach { it.join() }
+      val stats = pool.stats()
+      assertEquals(0, stats.idle)
+      assertEquals(16L, stats.discarded)
+    }
+  }
+
+  @Test
+  fun dropsTokenizersAfterLongInput() {
+    val pool = pool()
+    val short = pool.acquire()
+    val long = pool.acquire()
+    short.analyzed(100)
+    long.analyzed(101)
+    pool.release(short)
+    pool.release(long)
+    val stats = pool.stats()
+    assertEquals(1, stats.idle)
+    assertEquals(1L, stats.discardedLarge)
+    assertEquals(100, stats.largestIdleInput)
+    assertSame(short, pool.acquire())
+  }
+
+  @Test
+  fun reloadableTokenizerUsesPool() {
+    val dictionary = ReloadableDictionary(dic.config, null, TokenizerPool.Limits(2, 10, 100))
+    val tokenizer = dictionary.newTokenizer()
+    val first = tokenizer.get()
+    assertSame(first, tokenizer.get())
+    tokenizer.release()
+    assertSame(first, tokenizer.get())
+    assertEquals(1L, dictionary.tokenizerStats().created)
+
+    tokenizer.analyzed(1000)
+    tokenizer.release()
+    assertEquals(1L, dictionary.tokenizerStats().discardedLarge)
+
+    dictionary.reload()
+    assertNotSame(first, tokenizer.get())
+    assertEquals(1L, dictionary.tokenizerStats().created)
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.lucene.sudachi.ja
+
+import com.worksap.nlp.lucene.sudachi.ja.attributes.MorphemeAttribute
+import com.worksap.nlp.sudachi.Morpheme
+import com.worksap.nlp.sudachi.Tokenizer.SplitMode
+import com.worksap.nlp.test.InMemoryDictionary
+import java.io.StringReader
+import kotlin.test.Test
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertSame
+import org.apache.lucene.analysis.tokenattributes.CharTermAttributeImpl
+import org.apache.lucene.util.AttributeSource
+
+class CompactMorphemeListTest {
+  private val dic = InMemoryDictionary()
+  private val tokenizer = dic.dic.newTokenizer().get()
+  private val term = CharTermAttributeImpl()
+  private val units = SubUnits()
+
+  private fun assertSameMorpheme(expected: Morpheme, actual: Morpheme) {
+    assertEquals(expected.surface(), actual.surface())
+    assertEquals(expected.begin(), actual.begin())
+    assertEquals(expected.end(), actual.end())
+    assertEquals(expected.partOfSpeechId(), actual.partOfSpeechId())
+    assertEquals(expected.partOfSpeech(), actual.partOfSpeech())
+    assertEquals(expected.dictionaryForm(), actual.dictionaryForm())
+    assertEquals(expected.normalizedForm(), actual.normalizedForm())
+    assertEquals(expected.readingForm(), actual.readingForm())
+    assertEquals(expected.isOOV, actual.isOOV)
+    assertEquals(expected.wordId, actual.wordId)
+    assertEquals(expected.dictionaryId, actual.dictionaryId)
+    assertContentEquals(expected.synonymGroupIds, actual.synonymGroupIds)
+    assertEquals(expected.surface(), term.setEmpty().appendSurface(actual).toString())
+  }
+
+  private fun check(input: String) {
+    val list = tokenizer.tokenize(SplitMode.C, input)
+    val compact = CompactMorphemeList.compact(input, list, dic.dic.get())
+    assertEquals(list.size, compact.size)
+    for (mode in SplitMode.values()) {
+      val expected = list.split(mode)
+      val actual = compact.morphemes(mode).toList()
+      assertEquals(expected.size, actual.size, "number of morphemes in mode $mode")
+      expected.zip(actual).forEach { (e, a) -> assertSameMorpheme(e, a) }
+      val views = compact.morphemeViews(mode).iterator()
+      var view: Morpheme? = null
+      for (e in expected) {
+        val next = views.next()
+        assertSameMorpheme(e, next)
+        // a single morpheme is re-pointed to each record
+        assertSame(view ?: next, next)
+        view = next
+      }
+      assertFalse(views.hasNext())
+    }
+    for ((e, a) in list.zip(compact.morphemes(SplitMode.C))) {
+      for (mode in SplitMode.values()) {
+        val expected = e.split(mode)
+        val actual = a.split(mode)
+        assertEquals(expected.size, actual.size, "number of splits of ${e.surface()} in mode $mode")
+        expected.zip(actual).forEach { (es, `as`) -> assertSameMorpheme(es, `as`) }
+        for (m in listOf(e, a)) {
+          units.reset(m, mode)
+          assertEquals(expected.size, units.size)
+          expected.forEach { assertSameMorpheme(it, units.next()) }
+          assertEquals(false, units.hasNext())
+        }
+      }
+    }
+  }
+
+  @Test
+  fun dictionaryWords() {
+    check("東京都に行った")
+  }
+
+  @Test
+  fun splitWords() {
+    check("東京都へ行く東京都")
+  }
+
+  @Test
+  fun unknownWords() {
+    check("東京都にいったabcdef。ＸＹＺ")
+  }
+
+  @Test
+  fun emptyInput() {
+    check("")
+  }
+
+  @Test
+  fun chunkedAnalysisIsPackedAsWhole() {
+    val input = "東京都へ行く。東京都に行った。".repeat(4)
+    val whole =
+        CompactMorphemeList.compact(input, tokenizer.tokenize(SplitMode.C, input), dic.dic.get())
+    val chunked =
+        CompactMorphemeList.compact(
+            input,
+            NonCachedAnalysis(tokenizer, StringReader(input), SplitMode.C, 16),
+            dic.dic.get())
+    for (mode in SplitMode.values()) {
+      val expected = whole.morphemes(mode).toList()
+      val actual = chunked.morphemes(mode).toList()
+      assertEquals(expected.size, actual.size, "number of morphemes in mode $mode")
+      expected.zip(actual).forEach { (e, a) -> assertSameMorpheme(e, a) }
+    }
+  }
+
+  @Test
+  fun splitUnitsAreReused() {
+    val input = "東京都へ行く"
+    val compact =
+        CompactMorphemeList.compact(input, tokenizer.tokenize(SplitMode.C, input), dic.dic.get())
+    val m = compact.morphemeViews(SplitMode.C).first()
+    units.reset(m, SplitMode.A)
+    assertEquals(2, units.size)
+    val first = units.next()
+    assertEquals("東京", first.surface())
+    assertSame(first, units.next())
+    assertEquals("都", first.surface())
+    // the morpheme which is split is not affected
+    assertEquals("東京都", m.surface())
+  }
+
+  @Test
+  fun capturedStatesKeepTheirMorpheme() {
+    val input = "東京都に行った"
+    val compact =
+        CompactMorphemeList.compact(input, tokenizer.tokenize(SplitMode.C, input), dic.dic.get())
+    val source = AttributeSource()
+    val attribute = source.addAttribute(MorphemeAttribute::class.java)
+    val views = compact.morphemeViews(SplitMode.C).iterator()
+    attribute.morpheme = views.next()
+    val state = source.captureState()
+    attribute.morpheme = views.next()
+    assertEquals("に", attribute.morpheme.surface())
+    source.restoreState(state)
+    assertEquals("東京都", attribute.morpheme.surface())
+  }
+}
@@ -84,7 +84,7 @@ class Len95CachedAnalysisTest : ExtractedAnalysisTest() {
           CachingTokenizer(
               tokenizer = dic.dic.newTokenizer(),
               splitMode = Tokenizer.SplitMode.C,
-              cache = AnalysisCache(4, CopyingInputExtractor(95)))
+              cache = AnalysisCache(256 * 1024L, CopyingInputExtractor(95)))
       override fun analyze(input: CharSequence): MorphemeIterator {
         return cache.tokenize(StringReader(input.toString()))
       }
@@ -100,7 +100,7 @@ class Len95CachedAnalysisTestBadInput : ExtractedAnalysisTest() {
           CachingTokenizer(
               tokenizer = dic.dic.newTokenizer(),
               splitMode = Tokenizer.SplitMode.C,
-              cache = AnalysisCache(4, CopyingInputExtractor(95)))
+              cache = AnalysisCache(256 * 1024L, CopyingInputExtractor(95)))
       override fun analyze(input: CharSequence): MorphemeIterator {
         return cache.tokenize(BadReader(StringReader(input.toString()), 16))
       }
@@ -116,7 +116,7 @@ class NonCachedAnalysisTest : ExtractedAnalysisTest() {
           CachingTokenizer(
               tokenizer = dic.dic.newTokenizer(),
               splitMode = Tokenizer.SplitMode.C,
-              cache = AnalysisCache(4, NoopInputExtractor.INSTANCE))
+              cache = AnalysisCache(256 * 1024L, NoopInputExtractor.INSTANCE))
       override fun analyze(input: CharSequence): MorphemeIterator {
         return cache.tokenize(StringReader(input.toString()))
       }
@@ -132,7 +132,7 @@ class NonCachedBadReaderAnalysisTest : ExtractedAnalysisTest() {
           CachingTokenizer(
               tokenizer = dic.dic.newTokenizer(),
               splitMode = Tokenizer.SplitMode.C,
-              cache = AnalysisCache(4, NoopInputExtractor.INSTANCE))
+              cache = AnalysisCache(256 * 1024L, NoopInputExtractor.INSTANCE))
       override fun analyze(input: CharSequence): MorphemeIterator {
         return cache.tokenize(BadReader(StringReader(input.toString()), 16))
       }
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.lucene.sudachi.ja
+
+import com.worksap.nlp.sudachi.PartialPOS
+import com.worksap.nlp.sudachi.Tokenizer.SplitMode
+import com.worksap.nlp.test.InMemoryDictionary
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+
+class PosIdMatcherTest {
+  private val dic = InMemoryDictionary()
+  private val tokenizer = dic.dic.newTokenizer().get()
+
+  private fun check(input: String, vararg tags: PartialPOS) {
+    val dictionary = dic.dic.get()
+    val expected = dictionary.posMatcher(tags.toList())
+    val matcher = PosIdMatcher.of(dictionary, tags.toList())
+    val list = tokenizer.tokenize(SplitMode.C, input)
+    val compact = CompactMorphemeList.compact(input, list, dictionary)
+    for ((m, c) in list.zip(compact.morphemes(SplitMode.C))) {
+      assertEquals(expected.test(m), matcher.test(m), "morpheme ${m.surface()}")
+      assertEquals(expected.test(m), matcher.test(c), "compact morpheme ${c.surface()}")
+    }
+  }
+
+  @Test
+  fun matchesLikePosMatcher() {
+    check("東京都に行った。abc", PartialPOS.of("助詞"), PartialPOS.of("名詞", "固有名詞"))
+  }
+
+  @Test
+  fun matchesUnknownWords() {
+    check("東京都にいったabcdef。ＸＹＺ", PartialPOS.of("名詞", "普通名詞"))
+  }
+
+  @Test
+  fun unknownPosIdsDoNotMatch() {
+    val matcher = PosIdMatcher.of(dic.dic.get(), listOf(PartialPOS.of("名詞")))
+    assertFalse(matcher.test(Short.MAX_VALUE.toInt()))
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.lucene.sudachi.ja
+
+import com.worksap.nlp.lucene.sudachi.ja.util.Strings
+import com.worksap.nlp.sudachi.Tokenizer.SplitMode
+import com.worksap.nlp.test.InMemoryDictionary
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class PunctuationMatcherTest {
+  private val dic = InMemoryDictionary()
+  private val tokenizer = dic.dic.newTokenizer().get()
+  private val matcher = PunctuationMatcher.of(dic.dic.get())
+
+  private fun check(input: String) {
+    val list = tokenizer.tokenize(SplitMode.C, input)
+    val compact = CompactMorphemeList.compact(input, list, dic.dic.get())
+    // twice to check remembered decisions as well
+    repeat(2) {
+      for ((m, c) in list.zip(compact.morphemes(SplitMode.C))) {
+        val expected = Strings.isPunctuation(m.normalizedForm())
+        assertEquals(expected, matcher.test(m), "morpheme ${m.surface()}")
+        assertEquals(expected, matcher.test(c), "compact morpheme ${c.surface()}")
+      }
+    }
+  }
+
+  @Test
+  fun dictionaryWords() {
+    check("東京都に行った。")
+  }
+
+  @Test
+  fun unknownWords() {
+    check("abc、ＸＹＺ！？「東京」")
+    assertTrue(matcher.test(tokenizer.tokenize(SplitMode.C, "！？").last()))
+  }
+
+  @Test
+  fun sharedByDictionary() {
+    assertSame(matcher, PunctuationMatcher.of(dic.dic.get()))
+  }
+}
@@ -20,6 +20,7 @@ import com.worksap.nlp.test.InMemoryDictionary
 import kotlin.test.Test
 import kotlin.test.assertEquals
 import kotlin.test.assertNotNull
+import kotlin.test.assertNotSame
 import kotlin.test.assertSame
 
 class ReloadableTest {
@@ -39,4 +40,17 @@ class ReloadableTest {
     t2.maybeReload()
     assertEquals(t1.dictionary().version, t2.dictionary().version)
   }
+
+  @Test
+  fun tokenizerDictionaryIsTheOneOfTheTakenTokenizer() {
+    val dictionary = InMemoryDictionary().newDictionary()
+    val tokenizer = dictionary.newTokenizer()
+    tokenizer.get()
+    val old = dictionary.get()
+    dictionary.reload()
+    assertNotSame(old, dictionary.get())
+    assertSame(old, tokenizer.tokenizerDictionary())
+    tokenizer.get()
+    assertSame(dictionary.get(), tokenizer.tokenizerDictionary())
+  }
 }
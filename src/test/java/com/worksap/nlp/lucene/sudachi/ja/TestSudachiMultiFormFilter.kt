@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.lucene.sudachi.ja
+
+import com.worksap.nlp.lucene.sudachi.aliases.BaseTokenStreamTestCase
+import com.worksap.nlp.lucene.sudachi.ja.attributes.MorphemeConsumerAttribute
+import com.worksap.nlp.test.InMemoryDictionary
+import org.apache.lucene.analysis.LowerCaseFilter
+import org.junit.Test
+
+class TestSudachiMultiFormFilter : BaseTokenStreamTestCase() {
+  private val dic = InMemoryDictionary()
+
+  @Test
+  fun defaultFormsAreStacked() {
+    val factory = SudachiMultiFormFilterFactory(mutableMapOf())
+    val tokenStream = factory.create(dic.tokenizer("東京都に行った。"))
+    assertTokenStreamContents(
+        tokenStream,
+        arrayOf("東京都", "トウキョウト", "に", "ニ", "行っ", "行く", "イッ", "た", "タ"),
+        intArrayOf(0, 0, 3, 3, 4, 4, 4, 6, 6),
+        intArrayOf(3, 3, 4, 4, 6, 6, 6, 7, 7),
+        arrayOf(
+            "surface",
+            "reading",
+            "surface",
+            "reading",
+            "surface",
+            "normalized",
+            "reading",
+            "surface",
+            "reading"),
+        intArrayOf(1, 0, 1, 0, 1, 0, 0, 1, 0))
+  }
+
+  @Test
+  fun prefixesAndTypes() {
+    val factory =
+        SudachiMultiFormFilterFactory(
+            mutableMapOf(
+                "forms" to "base, romaji", "prefixes.romaji" to "r:", "types.base" to "word"))
+    val tokenStream = factory.create(dic.tokenizer("東京都に行った。"))
+    assertTokenStreamContents(
+        tokenStream,
+        arrayOf("東京都", "r:toukyouto", "に", "r:ni", "行く", "r:iltu", "た", "r:ta"),
+        null,
+        null,
+        arrayOf("word", "romaji", "word", "romaji", "word", "romaji", "word", "romaji"),
+        intArrayOf(1, 0, 1, 0, 1, 0, 1, 0))
+  }
+
+  @Test
+  fun surfaceIsCurrentTermIfAnotherComponentConsumesMorphemes() {
+    val tokenizer = dic.tokenizer("東京都ABC")
+    val filter =
+        SudachiMultiFormFilter(
+            LowerCaseFilter(tokenizer),
+            listOf(
+                SudachiMultiFormFilter.Form(SudachiMultiFormFilter.Kind.SURFACE),
+                SudachiMultiFormFilter.Form(SudachiMultiFormFilter.Kind.BASE, "b:")))
+    // the tokenizer produces terms, which are changed by the filter in between
+    filter.getAttribute(MorphemeConsumerAttribute::class.java).currentConsumer = tokenizer
+    assertTokenStreamContents(filter, arrayOf("東京都", "b:東京都", "abc", "b:ABC"))
+  }
+
+  @Test
+  fun unknownFormIsRejected() {
+    assertThrows(IllegalArgumentException::class.java) {
+      SudachiMultiFormFilterFactory(mutableMapOf("forms" to "surface,lemma"))
+    }
+  }
+}
@@ -17,6 +17,7 @@
 package com.worksap.nlp.lucene.sudachi.ja;
 
 import com.worksap.nlp.lucene.sudachi.aliases.BaseTokenStreamTestCase;
+import com.worksap.nlp.sudachi.PartialPOS;
 import com.worksap.nlp.sudachi.Tokenizer.SplitMode;
 import com.worksap.nlp.test.InMemoryDictionary;
 import org.apache.lucene.analysis.TokenStream;
@@ -24,6 +25,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -90,6 +92,15 @@ public class TestSudachiPartOfSpeechStopFilter extends BaseTokenStreamTestCase {
         assertTokenStreamContents(tokenStream, new String[] { "東京", "都", "行っ", "た" });
     }
 
+    @Test
+    public void testFixedMatcher() throws IOException {
+        InMemoryDictionary imd = new InMemoryDictionary();
+        PosIdMatcher matcher = PosIdMatcher.of(imd.getDic().get(),
+                Arrays.asList(PartialPOS.of("動詞"), PartialPOS.of("名詞", "固有名詞")));
+        tokenStream = new SudachiPartOfSpeechStopFilter(tokenStream, matcher);
+        assertTokenStreamContents(tokenStream, new String[] { "都", "に", "た" });
+    }
+
     @Test
     public void testTooLongCategory() throws IOException {
         String tags = "名詞,固有名詞,地名,一般,一般\n";
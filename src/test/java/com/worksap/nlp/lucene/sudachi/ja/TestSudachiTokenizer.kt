@@ -17,6 +17,7 @@
 package com.worksap.nlp.lucene.sudachi.ja
 
 import com.worksap.nlp.elasticsearch.sudachi.plugin.AnalysisCache
+import com.worksap.nlp.elasticsearch.sudachi.plugin.ParallelAnalysisPool
 import com.worksap.nlp.elasticsearch.sudachi.plugin.ReloadableDictionary
 import com.worksap.nlp.lucene.sudachi.aliases.BaseTokenStreamTestCase
 import com.worksap.nlp.lucene.sudachi.ja.input.CopyingInputExtractor
@@ -25,9 +26,11 @@ import com.worksap.nlp.sudachi.Config
 import com.worksap.nlp.sudachi.PathAnchor
 import com.worksap.nlp.sudachi.Tokenizer.SplitMode
 import com.worksap.nlp.test.TestDictionary
+import java.io.FilterReader
 import java.io.StringReader
 import org.apache.lucene.analysis.charfilter.MappingCharFilter
 import org.apache.lucene.analysis.charfilter.NormalizeCharMap
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute
 import org.apache.lucene.util.AttributeFactory
 import org.junit.Before
 import org.junit.Rule
@@ -42,16 +45,20 @@ open class TestSudachiTokenizer : BaseTokenStreamTestCase() {
   fun makeTokenizer(
       mode: SplitMode,
       noPunctuation: Boolean = true,
-      capacity: Int = 0
+      cacheSize: Long = 0,
+      maxChunkLength: Int = NonCachedAnalysis.DEFAULT_MAX_CHUNK_LENGTH,
+      pool: ParallelAnalysisPool? = null
   ): SudachiTokenizer {
     val dict = ReloadableDictionary(config)
     val extractor =
-        if (capacity == 0) {
+        if (cacheSize == 0L) {
           NoopInputExtractor.INSTANCE
         } else {
           CopyingInputExtractor(Short.MAX_VALUE.toInt())
         }
-    val tok = CachingTokenizer(dict.newTokenizer(), mode, AnalysisCache(capacity, extractor))
+    val tok =
+        CachingTokenizer(
+            dict.newTokenizer(), mode, AnalysisCache(cacheSize, extractor), maxChunkLength, pool)
     return SudachiTokenizer(tok, noPunctuation, AttributeFactory.DEFAULT_ATTRIBUTE_FACTORY)
   }
 
@@ -95,7 +102,7 @@ open class TestSudachiTokenizer : BaseTokenStreamTestCase() {
 
   @Test
   fun incrementTokenByDefaultModeCached() {
-    val tokenizer = makeTokenizer(SplitMode.C, capacity = 10)
+    val tokenizer = makeTokenizer(SplitMode.C, cacheSize = 1024 * 1024L)
     tokenizer.setReader(StringReader("東京都に行った。"))
     assertTokenStreamContents(
         tokenizer,
@@ -155,7 +162,7 @@ open class TestSudachiTokenizer : BaseTokenStreamTestCase() {
 
   @Test
   fun incrementTokenWithPunctuationsByPunctuationModeCached() {
-    val tokenizer = makeTokenizer(SplitMode.C, false, capacity = 10)
+    val tokenizer = makeTokenizer(SplitMode.C, false, cacheSize = 1024 * 1024L)
     tokenizer.setReader(StringReader("東京都に行った。東京都に行った。"))
     assertTokenStreamContents(
         tokenizer,
@@ -168,6 +175,40 @@ open class TestSudachiTokenizer : BaseTokenStreamTestCase() {
     )
   }
 
+  @Test
+  fun punctuationIsMatchedWithDictionaryOfTokenizer() {
+    val dict = ReloadableDictionary(config)
+    val caching =
+        CachingTokenizer(
+            dict.newTokenizer(),
+            SplitMode.C,
+            AnalysisCache(1024 * 1024L, CopyingInputExtractor(Short.MAX_VALUE.toInt())))
+    val tokenizer = SudachiTokenizer(caching, true)
+    val old = dict.get()
+    // the dictionary is reloaded while the input is analyzed with the old one
+    val input =
+        object : FilterReader(StringReader("東京都に行った。")) {
+          override fun read(cbuf: CharArray, off: Int, len: Int): Int {
+            if (dict.get() === old) {
+              dict.reload()
+            }
+            return super.read(cbuf, off, len)
+          }
+        }
+    tokenizer.setReader(input)
+    val term = tokenizer.getAttribute(CharTermAttribute::class.java)
+    val terms = ArrayList<String>()
+    tokenizer.reset()
+    assertNotSame(old, dict.get())
+    assertSame(old, caching.lastDictionary)
+    while (tokenizer.incrementToken()) {
+      terms.add(term.toString())
+    }
+    tokenizer.end()
+    tokenizer.close()
+    assertEquals(listOf("東京都", "に", "行っ", "た"), terms)
+  }
+
   @Test
   fun incrementTokenWithOOVByDefaultMode() {
     val tokenizer = makeTokenizer(SplitMode.C, true)
@@ -246,6 +287,55 @@ open class TestSudachiTokenizer : BaseTokenStreamTestCase() {
     )
   }
 
+  @Test
+  fun incrementTokenInChunks() {
+    val tokenizer = makeTokenizer(SplitMode.C, maxChunkLength = 10)
+    tokenizer.setReader(StringReader("東京都に行った。東京都に行った。"))
+    assertTokenStreamContents(
+        tokenizer,
+        arrayOf("東京都", "に", "行っ", "た", "東京都", "に", "行っ", "た"),
+        intArrayOf(0, 3, 4, 6, 8, 11, 12, 14),
+        intArrayOf(3, 4, 6, 7, 11, 12, 14, 15),
+        intArrayOf(1, 1, 1, 1, 1, 1, 1, 1),
+        intArrayOf(1, 1, 1, 1, 1, 1, 1, 1),
+        16,
+    )
+  }
+
+  @Test
+  fun incrementTokenInChunksWithoutSentenceEnd() {
+    val tokenizer = makeTokenizer(SplitMode.C, maxChunkLength = 6)
+    tokenizer.setReader(StringReader("東京都 東京都 東京都"))
+    assertTokenStreamContents(
+        tokenizer,
+        arrayOf("東京都", "東京都", "東京都"),
+        intArrayOf(0, 4, 8),
+        intArrayOf(3, 7, 11),
+        intArrayOf(1, 1, 1),
+        intArrayOf(1, 1, 1),
+        11,
+    )
+  }
+
+  @Test
+  fun incrementTokenInParallelChunks() {
+    val text = "東京都に行った。".repeat(20)
+    val count = 4 * 20
+    ParallelAnalysisPool(2).use { pool ->
+      val tokenizer = makeTokenizer(SplitMode.C, maxChunkLength = 10, pool = pool)
+      tokenizer.setReader(StringReader(text))
+      assertTokenStreamContents(
+          tokenizer,
+          Array(count) { arrayOf("東京都", "に", "行っ", "た")[it % 4] },
+          IntArray(count) { it / 4 * 8 + intArrayOf(0, 3, 4, 6)[it % 4] },
+          IntArray(count) { it / 4 * 8 + intArrayOf(3, 4, 6, 7)[it % 4] },
+          IntArray(count) { 1 },
+          IntArray(count) { 1 },
+          text.length,
+      )
+    }
+  }
+
   @Test
   fun additionalSettings() {
     val tokenizer = makeTokenizer(SplitMode.C, true)
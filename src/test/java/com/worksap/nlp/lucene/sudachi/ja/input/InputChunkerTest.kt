@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.lucene.sudachi.ja.input
+
+import java.io.StringReader
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+
+class InputChunkerTest {
+  private fun chunks(text: String, maxLength: Int): List<String> {
+    val chunker = InputChunker(StringReader(text), maxLength)
+    val result = ArrayList<String>()
+    while (true) {
+      val chunk = chunker.next() ?: break
+      assertEquals(text.substring(chunker.offset, chunker.end), chunk)
+      result.add(chunk)
+    }
+    assertEquals(text.length, chunker.end)
+    return result
+  }
+
+  @Test
+  fun shortInputIsSingleChunk() {
+    assertEquals(listOf("東京都に行った。"), chunks("東京都に行った。", 100))
+    assertEquals(listOf(), chunks("", 100))
+  }
+
+  @Test
+  fun cutsAfterSentenceEnd() {
+    assertEquals(listOf("東京都に行った。", "京都にも"), chunks("東京都に行った。京都にも", 10))
+  }
+
+  @Test
+  fun cutsAfterPunctuation() {
+    assertEquals(listOf("東京都、", "京都、大阪"), chunks("東京都、京都、大阪", 6))
+    assertEquals(listOf("abc def ", "ghi"), chunks("abc def ghi", 10))
+  }
+
+  @Test
+  fun cutsAtScriptChange() {
+    assertEquals(listOf("東京タワー", "にのぼる"), chunks("東京タワーにのぼる", 7))
+    assertEquals(listOf("東京", "タワー"), chunks("東京タワー", 4))
+    assertEquals(listOf("漢字12", "カナ"), chunks("漢字12カナ", 5))
+  }
+
+  @Test
+  fun doesNotCutSurrogatePair() {
+    val text = "𠮷𠮷𠮷"
+    assertEquals(listOf("𠮷", "𠮷", "𠮷"), chunks(text, 3))
+  }
+
+  @Test
+  fun hardCutWithoutBoundaries() {
+    assertEquals(listOf("あいう", "えお"), chunks("あいうえお", 3))
+  }
+
+  @Test
+  fun tooShortChunkIsRejected() {
+    assertFailsWith<IllegalArgumentException> { InputChunker(StringReader("a"), 1) }
+  }
+}
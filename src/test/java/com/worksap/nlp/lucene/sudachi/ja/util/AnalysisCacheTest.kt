@@ -17,11 +17,14 @@
 package com.worksap.nlp.lucene.sudachi.ja.util
 
 import com.worksap.nlp.elasticsearch.sudachi.plugin.AnalysisCache
+import com.worksap.nlp.elasticsearch.sudachi.plugin.AnalysisCacheImpl
 import com.worksap.nlp.elasticsearch.sudachi.plugin.AnalysisCacheStats
 import com.worksap.nlp.lucene.sudachi.ja.CachingTokenizer
 import com.worksap.nlp.lucene.sudachi.ja.MorphemeIterator
 import com.worksap.nlp.lucene.sudachi.ja.NonCachedAnalysis
+import com.worksap.nlp.lucene.sudachi.ja.SentenceCachedAnalysis
 import com.worksap.nlp.lucene.sudachi.ja.input.CopyingInputExtractor
+import com.worksap.nlp.sudachi.Dictionary
 import com.worksap.nlp.sudachi.Tokenizer.SplitMode
 import com.worksap.nlp.test.InMemoryDictionary
 import java.io.StringReader
@@ -32,12 +35,17 @@ import kotlin.test.assertIs
 class AnalysisCacheTest {
   private val dic = InMemoryDictionary()
 
-  inner class TestAnalyzer(mode: SplitMode = SplitMode.C, capacity: Int = 4) {
+  inner class TestAnalyzer(
+      mode: SplitMode = SplitMode.C,
+      size: Long = 256 * 1024L,
+      impl: AnalysisCacheImpl = AnalysisCacheImpl.ENGINE,
+      cacheSentences: Boolean = true
+  ) {
     private val cache =
         CachingTokenizer(
             tokenizer = dic.dic.newTokenizer(),
             splitMode = mode,
-            cache = AnalysisCache(capacity, CopyingInputExtractor(128)))
+            cache = AnalysisCache(size, CopyingInputExtractor(128), impl, cacheSentences))
     fun analyze(data: String): MorphemeIterator {
       val reader = StringReader(data)
       return cache.tokenize(reader)
@@ -54,6 +62,16 @@ class AnalysisCacheTest {
     assertEquals(1, ana.cacheStats().hits)
   }
 
+  @Test
+  fun cachedTinyLfu() {
+    val ana = TestAnalyzer(impl = AnalysisCacheImpl.TINYLFU)
+    ana.analyze("東京都")
+    val morphs = ana.analyze("東京都")
+    assertEquals("東京都", morphs.next()?.surface())
+    assertEquals(1, ana.cacheStats().hits)
+    assertEquals(1, ana.cacheStats().misses)
+  }
+
   @Test
   fun swapCache() {
     val ana = TestAnalyzer()
@@ -68,10 +86,63 @@ class AnalysisCacheTest {
 
   @Test
   fun largeMorpheme() {
-    val ana = TestAnalyzer()
+    val ana = TestAnalyzer(cacheSentences = false)
     val morphs = ana.analyze("0123456789".repeat(30))
     assertIs<NonCachedAnalysis>(morphs)
     val m = morphs.next()!!
     assertEquals("0123456789".repeat(30), m.surface())
   }
+
+  @Test
+  fun largeMorphemeCachedAsSentence() {
+    val ana = TestAnalyzer()
+    val morphs = ana.analyze("0123456789".repeat(30))
+    assertIs<SentenceCachedAnalysis>(morphs)
+    val m = morphs.next()!!
+    assertEquals("0123456789".repeat(30), m.surface())
+    assertEquals(0, morphs.baseOffset)
+  }
+
+  @Test
+  fun longInputIsCachedBySentences() {
+    val ana = TestAnalyzer()
+    val sentence = "東京都に行く六三四。"
+    val morphs = ana.analyze(sentence.repeat(20))
+    assertIs<SentenceCachedAnalysis>(morphs)
+    repeat(20) { i ->
+      for (surface in listOf("東京都", "に", "行く", "六三四", "。")) {
+        val m = morphs.next()!!
+        assertEquals(surface, m.surface())
+        assertEquals(i * sentence.length, morphs.baseOffset)
+      }
+    }
+    assertEquals(null, morphs.next())
+    assertEquals(sentence.length * 20, morphs.baseOffset)
+    assertEquals(1, ana.cacheStats().misses)
+    assertEquals(19, ana.cacheStats().hits)
+  }
+
+  @Test
+  fun invalidatedByReload() {
+    val cache = AnalysisCache(256 * 1024L, CopyingInputExtractor(128))
+    val old = dic.dic.get()
+    val tokenizer = old.create()
+    fun analyze(dictionary: Dictionary) {
+      val iter = cache.analyze(tokenizer, dictionary, SplitMode.C, StringReader("東京都"))
+      while (iter.next() != null) {}
+    }
+    analyze(old)
+    analyze(old)
+    assertEquals(1, cache.stats().hits)
+
+    val reloaded = dic.newDictionary().get()
+    cache.invalidate(reloaded)
+    analyze(old)
+    assertEquals(0, cache.stats().count)
+    analyze(reloaded)
+    analyze(reloaded)
+    assertEquals(2, cache.stats().hits)
+    assertEquals(2, cache.stats().misses)
+    assertEquals(1, cache.stats().count)
+  }
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2024 Works Applications Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.worksap.nlp.lucene.sudachi.ja.util
+
+import com.worksap.nlp.lucene.sudachi.ja.SudachiBaseFormFilter
+import com.worksap.nlp.lucene.sudachi.ja.SudachiSplitFilter
+import com.worksap.nlp.sudachi.Tokenizer.SplitMode
+import com.worksap.nlp.test.InMemoryDictionary
+import kotlin.test.AfterTest
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class InstrumentationTest {
+  @AfterTest
+  fun disable() {
+    Instrumentation.enabled = false
+  }
+
+  @Test
+  fun bucketBoundsContainValues() {
+    for (value in listOf(0L, 1L, 7L, 8L, 15L, 16L, 17L, 1000L, 123456789L, Long.MAX_VALUE)) {
+      val bucket = LatencyHistogram.bucketOf(value)
+      assertTrue(LatencyHistogram.lowerBound(bucket) <= value, "lower bound of $value")
+      assertTrue(LatencyHistogram.upperBound(bucket) >= value, "upper bound of $value")
+    }
+  }
+
+  @Test
+  fun percentiles() {
+    val histogram = LatencyHistogram()
+    for (i in 1..1000L) {
+      histogram.record(i * 1000)
+    }
+    val snapshot = LatencyHistogram.Snapshot()
+    histogram.addTo(snapshot)
+    assertEquals(1000, snapshot.count)
+    assertEquals(500500, snapshot.mean)
+    val p50 = snapshot.percentile(0.5)
+    assertTrue(p50 in 500_000L..500_000L * 9 / 8, "p50 was $p50")
+    val max = snapshot.max
+    assertTrue(max in 1_000_000L..1_000_000L * 9 / 8, "max was $max")
+  }
+
+  @Test
+  fun mergesThreads() {
+    Instrumentation.enabled = true
+    val before = Instrumentation.latencies().getValue(Instrumentation.Probe.TOKENIZE).count
+    val threads =
+        List(4) {
+          Thread {
+            repeat(100) {
+              val start = Instrumentation.start()
+              Instrumentation.record(Instrumentation.Probe.TOKENIZE, start)
+            }
+          }
+        }
+    threads.forEach { it.start() }
+    threads.forEach { it.join() }
+    val after = Instrumentation.latencies().getValue(Instrumentation.Probe.TOKENIZE).count
+    assertEquals(400, after - before)
+  }
+
+  @Test
+  fun disabledDoesNotRecord() {
+    val before = Instrumentation.latencies().getValue(Instrumentation.Probe.TOKENIZE).count
+    val start = Instrumentation.start()
+    assertEquals(Instrumentation.NOT_STARTED, start)
+    Instrumentation.record(Instrumentation.Probe.TOKENIZE, start)
+    Instrumentation.countTokens("disabled", 5)
+    val after = Instrumentation.latencies().getValue(Instrumentation.Probe.TOKENIZE).count
+    assertEquals(before, after)
+    assertEquals(null, Instrumentation.tokenCounts()["disabled"])
+  }
+
+  @Test
+  fun analysisChainIsRecorded() {
+    Instrumentation.enabled = true
+    val probes = Instrumentation.Probe.values()
+    val before = Instrumentation.latencies().mapValues { it.value.count }
+    val tokenizer = InMemoryDictionary().tokenizer("東京都に行った")
+    tokenizer.statsLabel = "instrumented"
+    val split = SudachiSplitFilter(tokenizer, SudachiSplitFilter.Mode.SEARCH, SplitMode.A)
+    val stream = SudachiBaseFormFilter(split)
+    stream.reset()
+    var count = 0
+    while (stream.incrementToken()) {
+      count += 1
+    }
+    stream.end()
+    stream.close()
+    val after = Instrumentation.latencies().mapValues { it.value.count }
+    for (p in probes) {
+      assertTrue(after.getValue(p) > before.getValue(p), "probe $p was not recorded")
+    }
+    assertEquals(4L, Instrumentation.tokenCounts()["instrumented"])
+    assertEquals(6, count)
+  }
+}